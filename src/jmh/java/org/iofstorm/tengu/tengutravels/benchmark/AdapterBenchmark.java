@@ -0,0 +1,109 @@
+package org.iofstorm.tengu.tengutravels.benchmark;
+
+import com.google.gson.Gson;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.Mark;
+import org.iofstorm.tengu.tengutravels.model.ShortVisits;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.tools.Dataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+// gson adapters of the models, writes of loaded entities and reads of POST bodies
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdapterBenchmark {
+
+    @Param("10000")
+    private int users;
+
+    private BenchmarkContext context;
+    private Gson gson;
+    private User user;
+    private Location location;
+    private Visit visit;
+    private ShortVisits shortVisits;
+    private Mark mark;
+    private String userJson;
+    private String locationJson;
+    private String visitJson;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = BenchmarkContext.load(new Dataset(users));
+        gson = context.getGson();
+        user = UserService.users.get(1);
+        location = LocationService.locations.get(1);
+        visit = context.getVisitService().getVisitWithoutLock(1);
+        shortVisits = context.getVisitService().getUserVisits(1, null, null, null, null);
+        mark = new Mark(new BigDecimal("3.14159"));
+        userJson = gson.toJson(user);
+        locationJson = gson.toJson(location);
+        visitJson = gson.toJson(visit);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String writeUser() {
+        return gson.toJson(user);
+    }
+
+    @Benchmark
+    public String writeLocation() {
+        return gson.toJson(location);
+    }
+
+    @Benchmark
+    public String writeVisit() {
+        return gson.toJson(visit);
+    }
+
+    @Benchmark
+    public String writeShortVisits() {
+        return gson.toJson(shortVisits);
+    }
+
+    @Benchmark
+    public String writeMark() {
+        return gson.toJson(mark);
+    }
+
+    @Benchmark
+    public User readUser() {
+        return gson.fromJson(userJson, User.class);
+    }
+
+    @Benchmark
+    public Location readLocation() {
+        return gson.fromJson(locationJson, Location.class);
+    }
+
+    @Benchmark
+    public Visit readVisit() {
+        return gson.fromJson(visitJson, Visit.class);
+    }
+}
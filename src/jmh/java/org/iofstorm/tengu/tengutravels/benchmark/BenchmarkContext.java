@@ -0,0 +1,92 @@
+package org.iofstorm.tengu.tengutravels.benchmark;
+
+import com.google.gson.Gson;
+import org.iofstorm.tengu.tengutravels.TenguTravelsApplication;
+import org.iofstorm.tengu.tengutravels.loader.DataLoader;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.iofstorm.tengu.tengutravels.tools.Dataset;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loader and services wired by Spring like in the application, without the web server, loaded from
+ * the zip of a {@link Dataset}. Snapshot and mutation log are off, so every context loads the zip.
+ * Entity stores of the services are static, so one JVM holds one dataset at a time.
+ */
+public final class BenchmarkContext implements Closeable {
+    private final AnnotationConfigApplicationContext context;
+    private final Dataset dataset;
+
+    private BenchmarkContext(AnnotationConfigApplicationContext context, Dataset dataset) {
+        this.context = context;
+        this.dataset = dataset;
+    }
+
+    public static BenchmarkContext load(Dataset dataset) throws IOException {
+        File zip = dataset.zip();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("tengu.data.path", zip.getPath());
+        properties.put("tengu.snapshot.path", new File(zip.getPath() + ".snapshot").getPath());
+        properties.put("tengu.snapshot.write-after-load", "false");
+        properties.put("tengu.journal.path", "");
+        properties.put("tengu.journal.sync", "false");
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.register(Config.class);
+        context.refresh();
+        return new BenchmarkContext(context, dataset);
+    }
+
+    public Dataset getDataset() {
+        return dataset;
+    }
+
+    public UserService getUserService() {
+        return context.getBean(UserService.class);
+    }
+
+    public LocationService getLocationService() {
+        return context.getBean(LocationService.class);
+    }
+
+    public VisitService getVisitService() {
+        return context.getBean(VisitService.class);
+    }
+
+    public Gson getGson() {
+        return context.getBean(Gson.class);
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+
+    @Configuration
+    @ComponentScan(basePackageClasses = {DataLoader.class, VisitService.class})
+    static class Config {
+
+        @Bean
+        public Gson gson() {
+            return new TenguTravelsApplication().gson();
+        }
+
+        @Bean
+        public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer() {
+            return new PropertySourcesPlaceholderConfigurer();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.iofstorm.tengu.tengutravels.benchmark;
+
+import org.iofstorm.tengu.tengutravels.tools.Dataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// full load of a zip: parsing, stores, indexes and mark aggregates
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DataLoaderBenchmark {
+
+    @Param("100000")
+    private int users;
+
+    private Dataset dataset;
+
+    @Setup
+    public void setUp() throws Exception {
+        dataset = new Dataset(users);
+        dataset.zip();
+    }
+
+    @Benchmark
+    public int loadData() throws Exception {
+        try (BenchmarkContext context = BenchmarkContext.load(dataset)) {
+            return context.getVisitService().getVisits().size();
+        }
+    }
+}
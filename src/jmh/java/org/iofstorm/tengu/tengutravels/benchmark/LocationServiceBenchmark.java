@@ -0,0 +1,71 @@
+package org.iofstorm.tengu.tengutravels.benchmark;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Mark;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.tools.Dataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// /locations/{id}/avg of random locations: no filters, date and gender filters and age filters take different paths
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationServiceBenchmark {
+
+    @Param("10000")
+    private int users;
+
+    private BenchmarkContext context;
+    private LocationService locationService;
+    private int locations;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = BenchmarkContext.load(new Dataset(users));
+        locationService = context.getLocationService();
+        locations = context.getDataset().getLocations();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Mark averageMark() {
+        return locationService.getAverageMark(locationId(), null, null, null, null, Gender.UNKNOWN);
+    }
+
+    @Benchmark
+    public Mark averageMarkByDatesAndGender() {
+        long fromDate = Dataset.between(ThreadLocalRandom.current(), Dataset.VISITED_AT_FROM, Dataset.VISITED_AT_TO);
+        return locationService.getAverageMark(locationId(), fromDate, fromDate + 3 * 365 * 86400L, null, null, Gender.FEMALE);
+    }
+
+    @Benchmark
+    public Mark averageMarkByAge() {
+        int fromAge = 20 + ThreadLocalRandom.current().nextInt(30);
+        return locationService.getAverageMark(locationId(), null, null, fromAge, fromAge + 20, Gender.UNKNOWN);
+    }
+
+    private int locationId() {
+        return 1 + ThreadLocalRandom.current().nextInt(locations);
+    }
+}
@@ -0,0 +1,56 @@
+package org.iofstorm.tengu.tengutravels.benchmark;
+
+import org.iofstorm.tengu.tengutravels.metrics.Endpoint;
+import org.iofstorm.tengu.tengutravels.metrics.LatencyHistogram;
+import org.iofstorm.tengu.tengutravels.metrics.Metrics;
+import org.iofstorm.tengu.tengutravels.store.LockStripes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// cost the handlers pay for recording their latency and the writers for an uncontended stripe
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final Metrics metrics = new Metrics();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LockStripes locks = new LockStripes(1024);
+    private long value = 12_345;
+
+    @Benchmark
+    public void histogramRecord() {
+        histogram.record(value++);
+    }
+
+    @Benchmark
+    public void endpointRecord() {
+        metrics.record(Endpoint.GET_AVG, Metrics.averageFilters(1L, null, 20, null, "m"), 200, System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void endpointRecordShared() {
+        metrics.record(Endpoint.GET_USER, 0, 200, System.nanoTime());
+    }
+
+    @Benchmark
+    public void stripeLockUnlock() {
+        int id = (int) value++;
+        locks.lock(id);
+        locks.unlock(id);
+    }
+}
@@ -0,0 +1,80 @@
+package org.iofstorm.tengu.tengutravels.benchmark;
+
+import org.iofstorm.tengu.tengutravels.model.ShortVisits;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.iofstorm.tengu.tengutravels.tools.Dataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// /users/{id}/visits of random users, every filter combination of the api. With a skew above 0 a few users
+// have thousands of visits, see Dataset
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VisitServiceBenchmark {
+
+    @Param("10000")
+    private int users;
+
+    @Param("0")
+    private double skew;
+
+    private BenchmarkContext context;
+    private VisitService visitService;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = BenchmarkContext.load(new Dataset(users, skew, Dataset.TIMESTAMP, users >= 100_000));
+        visitService = context.getVisitService();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public boolean userVisits(Blackhole blackhole) {
+        return visitService.forEachUserVisit(userId(), null, null, null, null, (mark, visitedAt, location) -> blackhole.consume(location));
+    }
+
+    @Benchmark
+    public boolean userVisitsByDates(Blackhole blackhole) {
+        long fromDate = Dataset.between(ThreadLocalRandom.current(), Dataset.VISITED_AT_FROM, Dataset.VISITED_AT_TO);
+        return visitService.forEachUserVisit(userId(), fromDate, fromDate + 3 * 365 * 86400L, null, null,
+                (mark, visitedAt, location) -> blackhole.consume(location));
+    }
+
+    @Benchmark
+    public boolean userVisitsByCountryAndDistance(Blackhole blackhole) {
+        String country = Dataset.COUNTRIES[ThreadLocalRandom.current().nextInt(Dataset.COUNTRIES.length)];
+        return visitService.forEachUserVisit(userId(), null, null, country, 50, (mark, visitedAt, location) -> blackhole.consume(location));
+    }
+
+    // the list based variant, allocates the ShortVisit objects
+    @Benchmark
+    public ShortVisits getUserVisits() {
+        return visitService.getUserVisits(userId(), null, null, null, null);
+    }
+
+    private int userId() {
+        return 1 + ThreadLocalRandom.current().nextInt(users);
+    }
+}
@@ -0,0 +1,79 @@
+package org.iofstorm.tengu.tengutravels.benchmark;
+
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.iofstorm.tengu.tengutravels.tools.Dataset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// POST /visits/new and /visits/{id}, every update moves the visit in both indexes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VisitWriteBenchmark {
+
+    @Param("10000")
+    private int users;
+
+    private BenchmarkContext context;
+    private VisitService visitService;
+    private int locations;
+    private int visits;
+    private AtomicInteger nextId;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = BenchmarkContext.load(new Dataset(users));
+        visitService = context.getVisitService();
+        locations = context.getDataset().getLocations();
+        visits = context.getDataset().getVisits();
+        nextId = new AtomicInteger(visits + 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int createVisit() {
+        Visit visit = randomVisit(ThreadLocalRandom.current());
+        visit.setId(nextId.getAndIncrement());
+        return visitService.createVisit(visit);
+    }
+
+    @Benchmark
+    public void updateVisit() {
+        Random random = ThreadLocalRandom.current();
+        visitService.updateVisit(1 + random.nextInt(visits), randomVisit(random));
+    }
+
+    private Visit randomVisit(Random random) {
+        Visit visit = new Visit();
+        visit.setUser(UserService.users.get(1 + random.nextInt(users)));
+        visit.setLocation(LocationService.locations.get(1 + random.nextInt(locations)));
+        visit.setVisitedAt(Dataset.between(random, Dataset.VISITED_AT_FROM, Dataset.VISITED_AT_TO));
+        visit.setMark(random.nextInt(6));
+        return visit;
+    }
+}
@@ -2,6 +2,8 @@ package org.iofstorm.tengu.tengutravels;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.iofstorm.tengu.tengutravels.controller.RawRouter;
+import org.iofstorm.tengu.tengutravels.controller.WarmUp;
 import org.iofstorm.tengu.tengutravels.model.Location;
 import org.iofstorm.tengu.tengutravels.model.Mark;
 import org.iofstorm.tengu.tengutravels.model.ShortVisit;
@@ -9,8 +11,11 @@ import org.iofstorm.tengu.tengutravels.model.User;
 import org.iofstorm.tengu.tengutravels.model.Visit;
 import org.iofstorm.tengu.tengutravels.service.LocationService;
 import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
 import org.springframework.http.converter.json.GsonHttpMessageConverter;
@@ -41,6 +46,17 @@ public class TenguTravelsApplication {
         return converter;
     }
 
+    // requests are routed by RawRouter before the servlet deployment sees them, still on the IO thread.
+    // WarmUp goes outside of it, so it parks client requests of both modes until the server is ready
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> handlerChainCustomizer(ObjectProvider<RawRouter> router, WarmUp warmUp) {
+        return factory -> factory.addDeploymentInfoCustomizers(info -> {
+            RawRouter rawRouter = router.getIfAvailable();
+            if (rawRouter != null) info.addInitialHandlerChainWrapper(rawRouter::wrap);
+            info.addInitialHandlerChainWrapper(warmUp::wrap);
+        });
+    }
+
     public static void main(String[] args) {
         startTs = System.currentTimeMillis();
         SpringApplication.run(TenguTravelsApplication.class, args);
@@ -0,0 +1,95 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import org.iofstorm.tengu.tengutravels.metrics.Metrics;
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.iofstorm.tengu.tengutravels.store.MarkAggregate;
+import org.iofstorm.tengu.tengutravels.store.ResponseCache;
+import org.iofstorm.tengu.tengutravels.store.StringDictionary;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bodies of /users/{id}/visits and /locations/{id}/avg for both MVC and raw mode. A body is cached by the id and
+ * all the filters of the request, and served as long as the version of the user or the location is the one it was
+ * built at. The version is taken before the body is built, so one built while a writer changes the data is
+ * already stale when it is cached. Only 200 bodies are cached.
+ */
+@Component
+public class CachedResponses {
+    private static final int SLOTS = 1 << 17;
+    private static final int MAX_ENTRY_BYTES = 64 * 1024;
+
+    private final VisitService visitService;
+    private final LocationService locationService;
+    private final boolean enabled;
+    private final ResponseCache visits;
+    private final ResponseCache averages;
+
+    @Autowired
+    public CachedResponses(VisitService visitService, LocationService locationService, Metrics metrics,
+                           @Value("${tengu.cache.max-bytes}") long maxBytes) {
+        this.visitService = visitService;
+        this.locationService = locationService;
+        this.enabled = maxBytes > 0;
+        // visits bodies are the larger ones
+        this.visits = new ResponseCache(SLOTS, maxBytes / 4 * 3, MAX_ENTRY_BYTES);
+        this.averages = new ResponseCache(SLOTS, maxBytes / 4, MAX_ENTRY_BYTES);
+        if (enabled) {
+            metrics.register("user_visits", visits);
+            metrics.register("location_avg", averages);
+        }
+    }
+
+    // body in the buffer of the current thread, null if there is no such user
+    public ResponseBuffer userVisits(int userId, Long fromDate, Long toDate, String country, Integer toDistance) {
+        ResponseBuffer out = ResponseBuffer.get();
+        // no location has an unknown country, such requests are cheap and not cached
+        int countryCode = country == null ? 0 : LocationService.strings.find(country);
+        if (!enabled || countryCode == StringDictionary.NOT_FOUND) {
+            if (!visitService.forEachUserVisit(userId, fromDate, toDate, country, toDistance, out.beginShortVisits())) return null;
+            return out.endShortVisits();
+        }
+
+        long version = UserService.versions.get(userId);
+        int filters = Metrics.visitsFilters(fromDate, toDate, country, toDistance);
+        long from = fromDate == null ? 0 : fromDate;
+        long to = toDate == null ? 0 : toDate;
+        int distance = toDistance == null ? 0 : toDistance;
+        byte[] body = visits.get(userId, filters, from, to, countryCode, distance, version);
+        if (body != null) return out.cached(body);
+
+        if (!visitService.forEachUserVisit(userId, fromDate, toDate, country, toDistance, out.beginShortVisits())) return null;
+        out.endShortVisits();
+        visits.put(userId, filters, from, to, countryCode, distance, version, out.toBytes());
+        return out;
+    }
+
+    // body in the buffer of the current thread, null if there is no such location; the gender is a valid one or null
+    public ResponseBuffer averageMark(int locationId, Long fromDate, Long toDate, Integer fromAge, Integer toAge, String gender) {
+        ResponseBuffer out = ResponseBuffer.get();
+        Gender g = Gender.fromString(gender);
+        if (!enabled) return average(out, locationId, fromDate, toDate, fromAge, toAge, g);
+
+        long version = LocationService.versions.get(locationId);
+        int filters = Metrics.averageFilters(fromDate, toDate, fromAge, toAge, gender);
+        long from = fromDate == null ? 0 : fromDate;
+        long to = toDate == null ? 0 : toDate;
+        long ages = (long) (fromAge == null ? 0 : fromAge) << 32 | (toAge == null ? 0 : toAge) & 0xFFFFFFFFL;
+        byte[] body = averages.get(locationId, filters, from, to, ages, g.ordinal(), version);
+        if (body != null) return out.cached(body);
+
+        if (average(out, locationId, fromDate, toDate, fromAge, toAge, g) == null) return null;
+        averages.put(locationId, filters, from, to, ages, g.ordinal(), version, out.toBytes());
+        return out;
+    }
+
+    private ResponseBuffer average(ResponseBuffer out, int locationId, Long fromDate, Long toDate, Integer fromAge, Integer toAge, Gender gender) {
+        long sumAndCount = locationService.getMarkSumAndCount(locationId, fromDate, toDate, fromAge, toAge, gender);
+        if (sumAndCount < 0) return null;
+        return out.avg(MarkAggregate.sumOf(sumAndCount), MarkAggregate.countOf(sumAndCount));
+    }
+}
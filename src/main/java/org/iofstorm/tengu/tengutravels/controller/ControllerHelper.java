@@ -1,5 +1,7 @@
 package org.iofstorm.tengu.tengutravels.controller;
 
+import org.iofstorm.tengu.tengutravels.loader.MutationLog;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -14,16 +16,37 @@ public class ControllerHelper {
     private static ResponseEntity<String> OK_EMPTY_RESPONSE = ResponseEntity.ok().contentLength(2).contentType(MediaType.APPLICATION_JSON).body("{}");
     private static final ResponseEntity<String> BAD_REQUEST_RESPONSE =  ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
     private static final ResponseEntity<String> NOT_FOUND_RESPONSE =    ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+    private static final ResponseEntity<String> NOT_DURABLE_RESPONSE =  ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
 
+    @Autowired
+    private MutationLog mutationLog;
+
+    // only accepted mutations are answered with it, so this is where they wait for their group commit,
+    // one the log failed to write is answered with 500
     ResponseEntity<String> okEmpty() {
-        return OK_EMPTY_RESPONSE;
+        return mutationLog.awaitDurable() ? OK_EMPTY_RESPONSE : NOT_DURABLE_RESPONSE;
+    }
+
+    // error responses have no body, so they fit any body type
+    @SuppressWarnings("unchecked")
+    <T> ResponseEntity<T> badRequest() {
+        return (ResponseEntity<T>) BAD_REQUEST_RESPONSE;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> ResponseEntity<T> notFound() {
+        return (ResponseEntity<T>) NOT_FOUND_RESPONSE;
     }
 
-    ResponseEntity<String> badRequest() {
-        return BAD_REQUEST_RESPONSE;
+    // an id of /users or /visits which is not an int, see Params.idErrorStatus()
+    <T> ResponseEntity<T> idError(String id) {
+        return Params.idErrorStatus(id) == 400 ? badRequest() : notFound();
     }
 
-    ResponseEntity<String> notFound() {
-        return NOT_FOUND_RESPONSE;
+    ResponseEntity<byte[]> okJson(byte[] body) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .contentLength(body.length)
+                .body(body);
     }
 }
@@ -1,10 +1,9 @@
 package org.iofstorm.tengu.tengutravels.controller;
 
-import com.google.gson.Gson;
 import org.iofstorm.tengu.tengutravels.Utils;
-import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.metrics.Endpoint;
+import org.iofstorm.tengu.tengutravels.metrics.Metrics;
 import org.iofstorm.tengu.tengutravels.model.Location;
-import org.iofstorm.tengu.tengutravels.model.Mark;
 import org.iofstorm.tengu.tengutravels.service.LocationService;
 import org.iofstorm.tengu.tengutravels.service.VisitService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,25 +17,17 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
-import javax.servlet.http.HttpServletRequest;
-import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.NOT_FOUND;
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.OK;
-import static org.iofstorm.tengu.tengutravels.model.Location.CITY;
 import static org.iofstorm.tengu.tengutravels.model.Location.CITY_LENGTH;
-import static org.iofstorm.tengu.tengutravels.model.Location.COUNTRY;
 import static org.iofstorm.tengu.tengutravels.model.Location.COUNTRY_LENGTH;
-import static org.iofstorm.tengu.tengutravels.model.Location.DISTANCE;
-import static org.iofstorm.tengu.tengutravels.model.Location.ID;
-import static org.iofstorm.tengu.tengutravels.model.Location.PLACE;
 
 @Controller
 @RequestMapping("/locations")
 public class LocationController {
-    @Autowired
-    private Gson gson;
-
     @Autowired
     private VisitService visitService;
 
@@ -49,58 +40,94 @@ public class LocationController {
     @Autowired
     private ControllerHelper controllerHelper;
 
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private CachedResponses cachedResponses;
+
     @RequestMapping(method = RequestMethod.GET, path = "/{locationId}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getLocation(@PathVariable("locationId") Integer locationId) {
-        if (locationId == null) return controllerHelper.badRequest();
-        Location location = locationService.getLocationWithoutLock(locationId);
-        if (location == null) return controllerHelper.notFound();
-        String body = gson.toJson(location);
-        return ResponseEntity.ok()
-                .contentLength(body.getBytes().length)
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(body);
+    public ResponseEntity<byte[]> getLocation(@PathVariable("locationId") String locationId) {
+        long startTs = System.nanoTime();
+        ResponseEntity<byte[]> response = location(locationId);
+        metrics.record(Endpoint.GET_LOCATION, response, startTs);
+        return response;
     }
 
     @RequestMapping(method = RequestMethod.POST, path = "/new", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<String> createLocation(@RequestBody Location location) {
+        long startTs = System.nanoTime();
+        ResponseEntity<String> response = create(location);
+        metrics.record(Endpoint.POST_NEW_LOCATION, response, startTs);
+        return response;
+    }
+
+    @RequestMapping(method = RequestMethod.POST, path = "/{locationId}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> updateLocation(@PathVariable("locationId") String locationId, @RequestBody byte[] body) {
+        long startTs = System.nanoTime();
+        ResponseEntity<String> response = update(locationId, body);
+        metrics.record(Endpoint.POST_LOCATION, response, startTs);
+        return response;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, path = "/{locationId}/avg", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getAverageMark(@PathVariable("locationId") String locationId,
+                                                 @RequestParam(value = "fromDate", required = false) String fromDate,
+                                                 @RequestParam(value = "toDate", required = false) String toDate,
+                                                 @RequestParam(value = "fromAge", required = false) String fromAge,
+                                                 @RequestParam(value = "toAge", required = false) String toAge,
+                                                 @RequestParam(value = "gender", required = false) String gender,
+                                                 HttpServletResponse response) throws IOException {
+        long startTs = System.nanoTime();
+        ResponseEntity<byte[]> result = averageMark(locationId, fromDate, toDate, fromAge, toAge, gender, response);
+        metrics.record(Endpoint.GET_AVG, Metrics.averageFilters(fromDate, toDate, fromAge, toAge, gender), result, startTs);
+        return result;
+    }
+
+    // ids and params are checked by the handlers, a malformed id of a location is a bad request too
+    @ExceptionHandler(Exception.class)
+    public ResponseEntity<String> handleMyException(Exception exception) {
+        return controllerHelper.badRequest();
+    }
+
+    private ResponseEntity<byte[]> location(String locationId) {
+        if (!Params.isInt(locationId)) return controllerHelper.badRequest();
+        Location location = locationService.getLocationWithoutLock(Params.parseInt(locationId));
+        if (location == null) return controllerHelper.notFound();
+        return controllerHelper.okJson(location.jsonBytes());
+    }
+
+    private ResponseEntity<String> create(Location location) {
         if (!validateOnCreate(location)) return controllerHelper.badRequest();
         int code = locationService.createLocation(location);
         return code == OK ? controllerHelper.okEmpty() : controllerHelper.badRequest();
     }
 
-    @RequestMapping(method = RequestMethod.POST, path = "/{locationId}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> updateLocation(@PathVariable("locationId") Integer locationId, @RequestBody Map<String, String> location) {
-        if (locationId == null) return controllerHelper.badRequest();
+    private ResponseEntity<String> update(String locationId, byte[] body) {
+        if (!Params.isInt(locationId)) return controllerHelper.badRequest();
 
-        Location newLocation = validateOnUpdate(location);
-        int code = locationService.updateLocation(locationId, newLocation);
+        PatchParser parser = new PatchParser(body);
+        Location newLocation = parser.location();
+        if (parser.status() == PatchParser.MALFORMED) return controllerHelper.badRequest();
+        int code = locationService.updateLocation(Params.parseInt(locationId), newLocation);
 
         if (code == OK) return controllerHelper.okEmpty();
         if (code == NOT_FOUND) return controllerHelper.notFound();
         else return controllerHelper.badRequest();
     }
 
-    @RequestMapping(method = RequestMethod.GET, path = "/{locationId}/avg", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> getAverageMark(@PathVariable("locationId") Integer locationId,
-                                                 @RequestParam(value = "fromDate", required = false) Long fromDate,
-                                                 @RequestParam(value = "toDate", required = false) Long toDate,
-                                                 @RequestParam(value = "fromAge", required = false) Integer fromAge,
-                                                 @RequestParam(value = "toAge", required = false) Integer toAge,
-                                                 @RequestParam(value = "gender", required = false) String gender) {
-        if (locationId == null) return controllerHelper.badRequest();
+    private ResponseEntity<byte[]> averageMark(String locationId, String fromDate, String toDate, String fromAge, String toAge,
+                                               String gender, HttpServletResponse response) throws IOException {
+        if (!Params.isInt(locationId)) return controllerHelper.badRequest();
+        if (!Params.isLongParam(fromDate) || !Params.isLongParam(toDate) || !Params.isIntParam(fromAge) || !Params.isIntParam(toAge)) {
+            return controllerHelper.badRequest();
+        }
         if (gender != null && utils.notMorF(gender)) return controllerHelper.badRequest();
-        Mark mark = locationService.getAverageMark(locationId, fromDate, toDate, fromAge, toAge, Gender.fromString(gender));
-        if (mark == null) return controllerHelper.notFound();
-        String body = gson.toJson(mark);
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_JSON)
-                .contentLength(body.getBytes().length)
-                .body(body);
-    }
-
-    @ExceptionHandler(Exception.class)
-    public ResponseEntity<String> handleMyException(Exception exception, HttpServletRequest request) {
-        return controllerHelper.badRequest();
+        ResponseBuffer out = cachedResponses.averageMark(Params.parseInt(locationId), Params.longParam(fromDate), Params.longParam(toDate),
+                Params.intParam(fromAge), Params.intParam(toAge), gender);
+        if (out == null) return controllerHelper.notFound();
+        out.writeTo(response);
+        return null; // body is already written
     }
 
     private boolean validateOnCreate(Location location) {
@@ -114,33 +141,4 @@ public class LocationController {
         if (location.getDistance() == 0) return false;
         return true;
     }
-
-    private Location validateOnUpdate(Map<String, String> loc) {
-        Location location = new Location();
-        if (loc.containsKey(ID)) return null;
-        if (loc.containsKey(PLACE)) {
-            if (loc.get(PLACE) == null) return null;
-            else location.setPlace(loc.get(PLACE));
-        }
-        if (loc.containsKey(COUNTRY)) {
-            String o = loc.get(COUNTRY);
-            if (o == null || o.length() > COUNTRY_LENGTH) return null;
-            else location.setCountry(o);
-        }
-        if (loc.containsKey(CITY)) {
-            String o = loc.get(CITY);
-            if (o == null || o.length() > CITY_LENGTH) return null;
-            else location.setCity(o);
-        }
-        if (loc.containsKey(DISTANCE)) {
-            String o = loc.get(DISTANCE);
-            if (o == null) return null;
-            try {
-                location.setDistance(Integer.valueOf(o));
-            } catch (NumberFormatException e) {
-                return null;
-            }
-        }
-        return location;
-    }
 }
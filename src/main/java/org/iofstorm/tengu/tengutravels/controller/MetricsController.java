@@ -0,0 +1,20 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import org.iofstorm.tengu.tengutravels.metrics.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class MetricsController {
+
+    @Autowired
+    private Metrics metrics;
+
+    @RequestMapping(method = RequestMethod.GET, path = "/metrics", produces = MediaType.TEXT_PLAIN_VALUE)
+    public String getMetrics() {
+        return metrics.format();
+    }
+}
@@ -0,0 +1,109 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+/**
+ * Path ids and query params are taken as strings and checked here by hand, so a malformed request costs neither
+ * an exception nor a regex. A value is accepted exactly when Spring's NumberUtils.parseNumber() accepts it, as the
+ * typed {@code @PathVariable} and {@code @RequestParam} did: whitespace anywhere is ignored and hex such as 0x10
+ * is decoded. A value which passed its check converts without throwing. Params which are absent or empty are null.
+ */
+final class Params {
+
+    private Params() {
+    }
+
+    static boolean isInt(String s) {
+        return s != null && inRange(s, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    static int parseInt(String id) {
+        return (int) valueOf(id);
+    }
+
+    static boolean isIntParam(String s) {
+        return s == null || s.isEmpty() || inRange(s, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    static Integer intParam(String s) {
+        return s == null || s.isEmpty() ? null : (int) valueOf(s);
+    }
+
+    static boolean isLongParam(String s) {
+        return s == null || s.isEmpty() || inRange(s, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    static Long longParam(String s) {
+        return s == null || s.isEmpty() ? null : valueOf(s);
+    }
+
+    // status of an id which is not an int: one of digits only is too large, a bad request, anything else doesn't
+    // match the id pattern of /users and /visits, so there is no such resource
+    static int idErrorStatus(String id) {
+        if (id.isEmpty()) return 404;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') return 404;
+        }
+        return 400;
+    }
+
+    // whitespace anywhere is dropped, then an optional sign and decimal digits of any script, or hex digits after
+    // 0x, 0X or # unless the sign is a plus, as NumberUtils.parseNumber() takes them. The value is accumulated
+    // negatively as Long.parseLong() does, to reach min
+    private static boolean inRange(String s, long min, long max) {
+        int end = s.length();
+        int i = skipWhitespace(s, 0, end);
+        if (i == end) return false;
+
+        char first = s.charAt(i);
+        boolean negative = first == '-';
+        if (negative || first == '+') i = skipWhitespace(s, i + 1, end);
+        int hex = first == '+' ? -1 : hexDigits(s, i, end);
+        int radix = hex < 0 ? 10 : 16;
+        if (hex >= 0) i = hex;
+        if (i == end) return false;
+
+        long limit = negative ? min : -max;
+        long multMin = limit / radix;
+        long value = 0;
+        for (; i < end; i = skipWhitespace(s, i + 1, end)) {
+            int digit = Character.digit(s.charAt(i), radix);
+            if (digit < 0) return false;
+            if (value < multMin) return false;
+            value *= radix;
+            if (value < limit + digit) return false;
+            value -= digit;
+        }
+        return true;
+    }
+
+    // the value of a string which passed inRange()
+    private static long valueOf(String s) {
+        int end = s.length();
+        int i = skipWhitespace(s, 0, end);
+        char first = s.charAt(i);
+        boolean negative = first == '-';
+        if (negative || first == '+') i = skipWhitespace(s, i + 1, end);
+        int hex = first == '+' ? -1 : hexDigits(s, i, end);
+        int radix = hex < 0 ? 10 : 16;
+        if (hex >= 0) i = hex;
+
+        long value = 0;
+        for (; i < end; i = skipWhitespace(s, i + 1, end)) value = value * radix - Character.digit(s.charAt(i), radix);
+        return negative ? value : -value;
+    }
+
+    // start of the digits after a hex prefix at i, -1 if there is none
+    private static int hexDigits(String s, int i, int end) {
+        if (i == end) return -1;
+        if (s.charAt(i) == '#') return skipWhitespace(s, i + 1, end);
+        if (s.charAt(i) != '0') return -1;
+        int x = skipWhitespace(s, i + 1, end);
+        if (x < end && (s.charAt(x) == 'x' || s.charAt(x) == 'X')) return skipWhitespace(s, x + 1, end);
+        return -1;
+    }
+
+    private static int skipWhitespace(String s, int i, int end) {
+        while (i < end && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+}
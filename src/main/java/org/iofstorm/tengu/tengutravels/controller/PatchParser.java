@@ -0,0 +1,382 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import org.iofstorm.tengu.tengutravels.Utils;
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the body of a POST update in one pass over its bytes into the entity the services take as a patch,
+ * fields which are not in the body stay unset. Values are checked as they are read, the same way the update
+ * validation did it over the string map gson used to bind: scalars are taken by their text, so "5" and 5 are
+ * the same number, unknown fields are skipped. Numbers are parsed from the bytes, only strings are allocated.
+ */
+final class PatchParser {
+    static final int OK = 0;
+    // a well-formed body with the id, a null, or a value of a wrong type or out of range
+    static final int INVALID = 1;
+    // not a json object of scalars, or a field given twice, answered before the entity is looked up
+    static final int MALFORMED = 2;
+
+    private static final byte[][] USER_FIELDS = names(User.ID, User.EMAIL, User.FIRST_NAME, User.LAST_NAME, User.GENDER, User.BIRTH_DATE);
+    private static final byte[][] LOCATION_FIELDS = names(Location.ID, Location.PLACE, Location.COUNTRY, Location.CITY, Location.DISTANCE);
+    private static final byte[][] VISIT_FIELDS = names(Visit.ID, Visit.LOCATION_ID, Visit.USER_ID, Visit.VISITED_AT, Visit.MARK);
+    private static final int END = -2;
+    private static final int UNKNOWN = -1;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int LITERAL = 2; // number, true or false
+
+    private final byte[] in;
+    private final int end;
+    private int pos;
+    private int status = OK;
+    private boolean firstField = true;
+    private int seen;
+
+    // the value of the current field, quotes excluded
+    private int kind;
+    private int start;
+    private int stop;
+    private boolean escaped;
+
+    PatchParser(byte[] in) {
+        this(in, in.length);
+    }
+
+    PatchParser(byte[] in, int length) {
+        this.in = in;
+        this.end = length;
+    }
+
+    int status() {
+        return status;
+    }
+
+    // null unless the status is OK
+    User user() {
+        User patch = new User();
+        for (int field = nextField(USER_FIELDS); field != END; field = nextField(USER_FIELDS)) {
+            switch (field) {
+                case 0:
+                    invalid(); // ids are not updated
+                    break;
+                case 1:
+                    patch.setEmail(string(User.EMAIL_LENGTH));
+                    break;
+                case 2:
+                    patch.setFirstName(string(User.NAME_LENGTH));
+                    break;
+                case 3:
+                    patch.setLastName(string(User.NAME_LENGTH));
+                    break;
+                case 4:
+                    patch.setGender(gender());
+                    break;
+                case 5:
+                    patch.setBirthDate(number(User.BIRTH_DATE_MIN, User.BIRTH_DATE_MAX));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return status == OK ? patch : null;
+    }
+
+    Location location() {
+        Location patch = new Location();
+        for (int field = nextField(LOCATION_FIELDS); field != END; field = nextField(LOCATION_FIELDS)) {
+            switch (field) {
+                case 0:
+                    invalid();
+                    break;
+                case 1:
+                    patch.setPlace(string(Integer.MAX_VALUE));
+                    break;
+                case 2:
+                    patch.setCountry(string(Location.COUNTRY_LENGTH));
+                    break;
+                case 3:
+                    patch.setCity(string(Location.CITY_LENGTH));
+                    break;
+                case 4:
+                    patch.setDistance((int) number(Integer.MIN_VALUE, Integer.MAX_VALUE));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return status == OK ? patch : null;
+    }
+
+    // users and locations of unknown ids are left unset, the visit keeps its own then
+    Visit visit() {
+        Visit patch = new Visit();
+        for (int field = nextField(VISIT_FIELDS); field != END; field = nextField(VISIT_FIELDS)) {
+            switch (field) {
+                case 0:
+                    invalid();
+                    break;
+                case 1:
+                    patch.setLocation(LocationService.locations.get((int) number(Integer.MIN_VALUE, Integer.MAX_VALUE)));
+                    break;
+                case 2:
+                    patch.setUser(UserService.users.get((int) number(Integer.MIN_VALUE, Integer.MAX_VALUE)));
+                    break;
+                case 3:
+                    patch.setVisitedAt(number(Location.VISITED_AT_MIN, Location.VISITED_AT_MAX));
+                    break;
+                case 4:
+                    patch.setMark((int) number(0, 5));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return status == OK ? patch : null;
+    }
+
+    // reads the next key and its value, the index of the key among the names, UNKNOWN, or END after the object
+    private int nextField(byte[][] names) {
+        if (status == MALFORMED) return END;
+        skipWhitespace();
+        if (firstField) {
+            firstField = false;
+            if (!expect('{')) return END;
+            skipWhitespace();
+            if (pos < end && in[pos] == '}') return close();
+        } else {
+            if (pos < end && in[pos] == '}') return close();
+            if (!expect(',')) return END;
+            skipWhitespace();
+        }
+
+        if (pos >= end || in[pos] != '"' || !readString()) return malformed();
+        int field = match(names);
+        skipWhitespace();
+        if (!expect(':')) return END;
+        skipWhitespace();
+        if (!readValue()) return malformed();
+
+        if (field >= 0) {
+            if ((seen & (1 << field)) != 0) return malformed();
+            seen |= 1 << field;
+        }
+        return field;
+    }
+
+    private int close() {
+        pos++;
+        skipWhitespace();
+        if (pos != end) malformed(); // trailing content
+        return END;
+    }
+
+    private int match(byte[][] names) {
+        if (escaped) {
+            String key = decode();
+            for (int i = 0; i < names.length; i++) {
+                if (key.equals(new String(names[i], StandardCharsets.UTF_8))) return i;
+            }
+            return UNKNOWN;
+        }
+        int length = stop - start;
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i];
+            if (name.length != length) continue;
+            int j = 0;
+            while (j < length && in[start + j] == name[j]) j++;
+            if (j == length) return i;
+        }
+        return UNKNOWN;
+    }
+
+    private boolean readValue() {
+        if (pos >= end) return false;
+        if (in[pos] == '"') {
+            kind = STRING;
+            return readString();
+        }
+        escaped = false;
+        if (literal("null")) {
+            kind = NULL;
+            return true;
+        }
+        kind = LITERAL;
+        start = pos;
+        if (literal("true") || literal("false")) {
+            stop = pos;
+            return true;
+        }
+        while (pos < end && isNumberChar(in[pos])) pos++;
+        stop = pos;
+        return stop > start;
+    }
+
+    // the quoted string at the position, its bounds are set and escapes checked
+    private boolean readString() {
+        start = ++pos;
+        escaped = false;
+        while (pos < end) {
+            byte b = in[pos];
+            if (b == '"') {
+                stop = pos++;
+                return true;
+            }
+            if (b == '\\') {
+                escaped = true;
+                if (++pos >= end) return false;
+                byte e = in[pos];
+                if (e == 'u') {
+                    if (pos + 4 >= end) return false;
+                    for (int i = 1; i <= 4; i++) {
+                        if (Character.digit(in[pos + i], 16) < 0) return false;
+                    }
+                    pos += 4;
+                } else if (e != '"' && e != '\\' && e != '/' && e != 'b' && e != 'f' && e != 'n' && e != 'r' && e != 't') {
+                    return false;
+                }
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    private boolean literal(String word) {
+        int n = word.length();
+        if (end - pos < n) return false;
+        for (int i = 0; i < n; i++) {
+            if (in[pos + i] != word.charAt(i)) return false;
+        }
+        pos += n;
+        return true;
+    }
+
+    // text of the value, null if it is null or longer than the max length
+    private String string(int maxLength) {
+        if (kind == NULL) return invalid();
+        String value = kind == STRING && escaped ? decode() : new String(in, start, stop - start, StandardCharsets.UTF_8);
+        return value.length() > maxLength ? invalid() : value;
+    }
+
+    private Gender gender() {
+        if (kind == NULL || escaped || stop - start != 1) return invalid();
+        byte b = in[start];
+        if (b == Utils.MALE.charAt(0)) return Gender.MALE;
+        if (b == Utils.FEMALE.charAt(0)) return Gender.FEMALE;
+        return invalid();
+    }
+
+    // an integer in the range, written as a number or as a string of plain digits, min if it is not one
+    private long number(long min, long max) {
+        if (kind == NULL || (kind == STRING && escaped) || start == stop) {
+            invalid();
+            return min;
+        }
+        int i = start;
+        boolean negative = in[i] == '-';
+        if ((negative || in[i] == '+') && ++i == stop) {
+            invalid();
+            return min;
+        }
+        long value = 0;
+        for (; i < stop; i++) {
+            int digit = in[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                invalid();
+                return min;
+            }
+            value = value * 10 - digit; // accumulated negatively to reach Long.MIN_VALUE
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                invalid();
+                return min;
+            }
+            value = -value;
+        }
+        if (value < min || value > max) {
+            invalid();
+            return min;
+        }
+        return value;
+    }
+
+    private String decode() {
+        StringBuilder out = new StringBuilder(stop - start);
+        int run = start;
+        for (int i = start; i < stop; i++) {
+            if (in[i] != '\\') continue;
+            if (i > run) out.append(new String(in, run, i - run, StandardCharsets.UTF_8));
+            byte e = in[++i];
+            switch (e) {
+                case 'b':
+                    out.append('\b');
+                    break;
+                case 'f':
+                    out.append('\f');
+                    break;
+                case 'n':
+                    out.append('\n');
+                    break;
+                case 'r':
+                    out.append('\r');
+                    break;
+                case 't':
+                    out.append('\t');
+                    break;
+                case 'u':
+                    int c = 0;
+                    for (int j = 1; j <= 4; j++) c = (c << 4) | Character.digit(in[i + j], 16);
+                    out.append((char) c);
+                    i += 4;
+                    break;
+                default:
+                    out.append((char) e);
+                    break;
+            }
+            run = i + 1;
+        }
+        if (stop > run) out.append(new String(in, run, stop - run, StandardCharsets.UTF_8));
+        return out.toString();
+    }
+
+    private boolean expect(char c) {
+        if (pos < end && in[pos] == c) {
+            pos++;
+            return true;
+        }
+        malformed();
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && (in[pos] == ' ' || in[pos] == '\t' || in[pos] == '\n' || in[pos] == '\r')) pos++;
+    }
+
+    private int malformed() {
+        status = MALFORMED;
+        return END;
+    }
+
+    private <T> T invalid() {
+        if (status == OK) status = INVALID;
+        return null;
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private static byte[][] names(String... names) {
+        byte[][] bytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) bytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+}
@@ -0,0 +1,361 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import com.google.gson.Gson;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import org.iofstorm.tengu.tengutravels.Utils;
+import org.iofstorm.tengu.tengutravels.metrics.Endpoint;
+import org.iofstorm.tengu.tengutravels.metrics.Metrics;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Routes /users, /locations and /visits straight from Undertow, without the DispatcherServlet.
+ * GETs are answered on the IO thread, POSTs are dispatched to a worker and passed to the controller methods,
+ * so validation, status codes and the latencies recorded are the same as in MVC mode. The Content-Type of a POST is
+ * checked as the consumes conditions and the message converters do it, see {@link #contentTypeStatus(String, boolean, String)}.
+ * Other requests go on to the servlet chain.
+ */
+@Component
+@ConditionalOnProperty(name = "tengu.server.raw-handler", havingValue = "true")
+public class RawRouter implements HttpHandler {
+    private static final Logger log = LoggerFactory.getLogger(RawRouter.class);
+
+    private static final String USERS = "users";
+    private static final String LOCATIONS = "locations";
+    private static final String VISITS = "visits";
+    private static final String AVG = "avg";
+    private static final String NEW = "new";
+    private static final int MAX_PRESIZED_BODY = 1 << 16;
+    private static final MediaType JSON_SUFFIX = MediaType.parseMediaType("application/*+json");
+    private static final byte[] NO_BODY = new byte[0];
+
+    @Autowired
+    private UserController userController;
+    @Autowired
+    private LocationController locationController;
+    @Autowired
+    private VisitController visitController;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private LocationService locationService;
+    @Autowired
+    private VisitService visitService;
+    @Autowired
+    private Utils utils;
+    @Autowired
+    private Gson gson;
+    @Autowired
+    private Metrics metrics;
+    @Autowired
+    private CachedResponses cachedResponses;
+
+    private HttpHandler next;
+
+    // used as the initial handler chain wrapper of the servlet deployment
+    public HttpHandler wrap(HttpHandler next) {
+        this.next = next;
+        log.info("/users, /locations and /visits are routed by undertow handler");
+        return this;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        String path = exchange.getRelativePath();
+        int end = path.length();
+        if (end > 1 && path.charAt(end - 1) == '/') end--; // trailing slash is matched by MVC too
+
+        // /{entity}/{id}[/{tail}]
+        int entityEnd = path.indexOf('/', 1);
+        if (entityEnd < 0 || entityEnd >= end) {
+            next.handleRequest(exchange);
+            return;
+        }
+        String entity = path.substring(1, entityEnd);
+        int idEnd = path.indexOf('/', entityEnd + 1);
+        if (idEnd < 0 || idEnd > end) idEnd = end;
+        String id = path.substring(entityEnd + 1, idEnd);
+        String tail = idEnd < end ? path.substring(idEnd + 1, end) : null;
+        if (id.isEmpty() || (tail != null && tail.indexOf('/') >= 0)) {
+            next.handleRequest(exchange);
+            return;
+        }
+
+        boolean handled;
+        if (Methods.GET.equals(exchange.getRequestMethod())) {
+            long startTs = System.nanoTime();
+            handled = get(exchange, entity, id, tail);
+            if (handled) {
+                Endpoint endpoint = endpoint(entity, tail);
+                metrics.record(endpoint, filters(exchange, endpoint), exchange.getStatusCode(), startTs);
+            }
+        } else if (Methods.POST.equals(exchange.getRequestMethod()) && tail == null) {
+            if (exchange.isInIoThread()) {
+                if (!USERS.equals(entity) && !LOCATIONS.equals(entity) && !VISITS.equals(entity)) {
+                    next.handleRequest(exchange);
+                } else {
+                    exchange.dispatch(this);
+                }
+                return;
+            }
+            handled = post(exchange, entity, id);
+        } else {
+            handled = false;
+        }
+        if (!handled) next.handleRequest(exchange);
+    }
+
+    private boolean get(HttpServerExchange exchange, String entity, String idStr, String tail) {
+        Integer id;
+        switch (entity) {
+            case USERS:
+                if (tail != null && !VISITS.equals(tail)) return false;
+                if ((id = parseId(exchange, entity, idStr)) == null) return true;
+                if (tail == null) {
+                    User user = userService.getUserWithoutLock(id);
+                    if (user == null) status(exchange, 404);
+                    else send(exchange, user.jsonBytes());
+                } else {
+                    getUserVisits(exchange, id);
+                }
+                return true;
+            case LOCATIONS:
+                if (tail != null && !AVG.equals(tail)) return false;
+                if ((id = parseId(exchange, entity, idStr)) == null) return true;
+                if (tail == null) {
+                    Location location = locationService.getLocationWithoutLock(id);
+                    if (location == null) status(exchange, 404);
+                    else send(exchange, location.jsonBytes());
+                } else {
+                    getAverageMark(exchange, id);
+                }
+                return true;
+            case VISITS:
+                if (tail != null) return false;
+                if ((id = parseId(exchange, entity, idStr)) == null) return true;
+                Visit visit = visitService.getVisitWithoutLock(id);
+                if (visit == null) status(exchange, 404);
+                else send(exchange, visit.jsonBytes());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void getUserVisits(HttpServerExchange exchange, int userId) {
+        String fromDate = param(exchange, "fromDate");
+        String toDate = param(exchange, "toDate");
+        String toDistance = param(exchange, "toDistance");
+        if (!Params.isLongParam(fromDate) || !Params.isLongParam(toDate) || !Params.isIntParam(toDistance)) {
+            status(exchange, 400);
+            return;
+        }
+        String country = param(exchange, "country");
+
+        ResponseBuffer out = cachedResponses.userVisits(userId, Params.longParam(fromDate), Params.longParam(toDate), country,
+                Params.intParam(toDistance));
+        if (out == null) {
+            status(exchange, 404);
+            return;
+        }
+        out.send(exchange);
+    }
+
+    private void getAverageMark(HttpServerExchange exchange, int locationId) {
+        String fromDate = param(exchange, "fromDate");
+        String toDate = param(exchange, "toDate");
+        String fromAge = param(exchange, "fromAge");
+        String toAge = param(exchange, "toAge");
+        String gender = param(exchange, "gender");
+        if (!Params.isLongParam(fromDate) || !Params.isLongParam(toDate) || !Params.isIntParam(fromAge) || !Params.isIntParam(toAge)
+                || (gender != null && utils.notMorF(gender))) {
+            status(exchange, 400);
+            return;
+        }
+
+        ResponseBuffer out = cachedResponses.averageMark(locationId, Params.longParam(fromDate), Params.longParam(toDate),
+                Params.intParam(fromAge), Params.intParam(toAge), gender);
+        if (out == null) {
+            status(exchange, 404);
+            return;
+        }
+        out.send(exchange);
+    }
+
+    // only called for handled GETs, so the entity and the tail are known ones
+    private static Endpoint endpoint(String entity, String tail) {
+        switch (entity) {
+            case USERS:
+                return tail == null ? Endpoint.GET_USER : Endpoint.GET_USER_VISITS;
+            case LOCATIONS:
+                return tail == null ? Endpoint.GET_LOCATION : Endpoint.GET_AVG;
+            default:
+                return Endpoint.GET_VISIT;
+        }
+    }
+
+    private static int filters(HttpServerExchange exchange, Endpoint endpoint) {
+        String[] names = endpoint.getFilters();
+        int filters = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (param(exchange, names[i]) != null) filters |= 1 << i;
+        }
+        return filters;
+    }
+
+    // runs on a worker thread, new entities are parsed the same way GsonHttpMessageConverter does it,
+    // update bodies are passed as bytes as by ByteArrayHttpMessageConverter
+    private boolean post(HttpServerExchange exchange, String entity, String idStr) {
+        exchange.startBlocking();
+        boolean create = NEW.equals(idStr);
+        String contentType = exchange.getRequestHeaders().getFirst(Headers.CONTENT_TYPE);
+        int status = contentTypeStatus(entity, create, contentType);
+        if (status != 0) {
+            status(exchange, status);
+            return true;
+        }
+        // the id is checked before the body is read, as a bad id is answered whatever the body is
+        if (!create && parseId(exchange, entity, idStr) == null) return true;
+
+        ResponseEntity<?> response;
+        try (InputStream body = exchange.getInputStream()) {
+            switch (entity) {
+                case USERS:
+                    response = create ? userController.createUser(gson.fromJson(reader(body, contentType), User.class))
+                            : userController.updateUser(idStr, readAll(body, exchange.getRequestContentLength()));
+                    break;
+                case LOCATIONS:
+                    response = create ? locationController.createLocation(gson.fromJson(reader(body, contentType), Location.class))
+                            : locationController.updateLocation(idStr, readAll(body, exchange.getRequestContentLength()));
+                    break;
+                case VISITS:
+                    // the servlet container takes a form body as parameters, what Spring rebuilds of it is never a json object
+                    response = create ? visitController.createVisit(gson.fromJson(reader(body, contentType), Visit.class))
+                            : visitController.updateVisit(idStr, isForm(contentType) ? NO_BODY : readAll(body, exchange.getRequestContentLength()));
+                    break;
+                default:
+                    return false;
+            }
+        } catch (Exception e) {
+            // unreadable bodies and anything thrown by the controllers end up as 400 in MVC mode as well
+            status(exchange, 400);
+            return true;
+        }
+        send(exchange, response);
+        return true;
+    }
+
+    /**
+     * 0 if a POST with the given Content-Type reaches the controller in MVC mode, otherwise its status.
+     * /users and /locations consume application/json only, anything else is 415. /visits consume any type: a type
+     * that can't be read is 400 from the controller's exception handler, so is a new visit which is not json,
+     * as there is no converter for it then.
+     */
+    static int contentTypeStatus(String entity, boolean create, String contentType) {
+        MediaType type;
+        try {
+            // an empty header counts as no header, as in HttpHeaders
+            type = contentType == null || contentType.isEmpty() ? null : MediaType.parseMediaType(contentType);
+        } catch (InvalidMediaTypeException e) {
+            return VISITS.equals(entity) ? 400 : 415;
+        }
+        if (!VISITS.equals(entity)) return type != null && MediaType.APPLICATION_JSON.includes(type) ? 0 : 415;
+        if (type == null) return create ? 400 : 0;
+        if (type.isWildcardType() || type.isWildcardSubtype()) return 400;
+        return !create || MediaType.APPLICATION_JSON.includes(type) || JSON_SUFFIX.includes(type) ? 0 : 400;
+    }
+
+    private static boolean isForm(String contentType) {
+        return contentType != null && !contentType.isEmpty()
+                && MediaType.APPLICATION_FORM_URLENCODED.includes(MediaType.parseMediaType(contentType));
+    }
+
+    // the charset of the Content-Type if there is one, as in GsonHttpMessageConverter
+    private static Reader reader(InputStream body, String contentType) {
+        Charset charset = contentType == null || contentType.isEmpty() ? null : MediaType.parseMediaType(contentType).getCharset();
+        return new InputStreamReader(body, charset == null ? StandardCharsets.UTF_8 : charset);
+    }
+
+    // the whole body in an array of its content length if that is known, so there is nothing to copy then
+    private static byte[] readAll(InputStream body, long contentLength) throws IOException {
+        byte[] bytes = new byte[contentLength > 0 && contentLength <= MAX_PRESIZED_BODY ? (int) contentLength : 256];
+        int n = 0;
+        while (true) {
+            if (n == bytes.length) {
+                int b = body.read();
+                if (b < 0) break;
+                bytes = Arrays.copyOf(bytes, n * 2);
+                bytes[n++] = (byte) b;
+            }
+            int read = body.read(bytes, n, bytes.length - n);
+            if (read < 0) break;
+            n += read;
+        }
+        return n == bytes.length ? bytes : Arrays.copyOf(bytes, n);
+    }
+
+    // null if the id is not an int, the response is already set then, 404 or 400 as in the controllers
+    private static Integer parseId(HttpServerExchange exchange, String entity, String id) {
+        if (Params.isInt(id)) return Params.parseInt(id);
+        status(exchange, LOCATIONS.equals(entity) ? 400 : Params.idErrorStatus(id));
+        return null;
+    }
+
+    // a repeated parameter comes joined with commas, as Spring converts its values to a String
+    private static String param(HttpServerExchange exchange, String name) {
+        Deque<String> values = exchange.getQueryParameters().get(name);
+        if (values == null) return null;
+        return values.size() == 1 ? values.peekFirst() : String.join(",", values);
+    }
+
+    private static void send(HttpServerExchange exchange, byte[] body) {
+        exchange.setStatusCode(200);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, body.length);
+        exchange.getResponseSender().send(ByteBuffer.wrap(body));
+    }
+
+    private static void send(HttpServerExchange exchange, ResponseEntity<?> response) {
+        Object body = response.getBody();
+        if (body == null) {
+            status(exchange, response.getStatusCodeValue());
+            return;
+        }
+        byte[] bytes = body instanceof byte[] ? (byte[]) body : body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.setStatusCode(response.getStatusCodeValue());
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, bytes.length);
+        exchange.getResponseSender().send(ByteBuffer.wrap(bytes));
+    }
+
+    private static void status(HttpServerExchange exchange, int code) {
+        exchange.setStatusCode(code);
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, 0);
+        exchange.endExchange();
+    }
+}
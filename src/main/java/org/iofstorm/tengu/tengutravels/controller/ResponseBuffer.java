@@ -0,0 +1,209 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.spec.ServletOutputStreamImpl;
+import io.undertow.util.Headers;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.springframework.http.MediaType;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per thread direct buffer the short visits and average mark responses are written into by hand,
+ * byte for byte the same as gson output but without reflection, intermediate objects and strings.
+ * Each thread keeps a pool of two: a buffer goes back to it when its async send completes, and while both
+ * are still being sent a heap buffer is used, so no direct memory is allocated past the pool.
+ */
+public final class ResponseBuffer implements VisitService.ShortVisitConsumer {
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int HEAP_CAPACITY = 1 << 12;
+    private static final int POOLED = 2;
+    private static final ThreadLocal<ResponseBuffer[]> pools = ThreadLocal.withInitial(() -> new ResponseBuffer[POOLED]);
+
+    private static final byte[] VISITS_START = bytes("{\"visits\":[");
+    private static final byte[] VISITS_END = bytes("]}");
+    private static final byte[] MARK = bytes("{\"mark\":");
+    private static final byte[] VISITED_AT = bytes(",\"visited_at\":");
+    private static final byte[] PLACE = bytes(",\"place\":");
+    private static final byte[] AVG = bytes("{\"avg\":");
+    private static final int AVG_SCALE = 100_000;
+
+    // the buffer this one was made with, buf is replaced only by a heap buffer for a larger response
+    private final ByteBuffer initial;
+    private ByteBuffer buf;
+    private final byte[] digits = new byte[20];
+    private boolean firstVisit;
+
+    // set while an async send of the raw router still reads the buffer
+    private volatile boolean inFlight;
+    private final IoCallback release = new IoCallback() {
+        @Override
+        public void onComplete(HttpServerExchange exchange, Sender sender) {
+            inFlight = false;
+            IoCallback.END_EXCHANGE.onComplete(exchange, sender);
+        }
+
+        @Override
+        public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+            inFlight = false;
+            IoCallback.END_EXCHANGE.onException(exchange, sender, exception);
+        }
+    };
+
+    private ResponseBuffer(ByteBuffer initial) {
+        this.initial = initial;
+        this.buf = initial;
+    }
+
+    // a free buffer of the current thread, emptied
+    public static ResponseBuffer get() {
+        ResponseBuffer[] pool = pools.get();
+        for (int i = 0; i < POOLED; i++) {
+            ResponseBuffer b = pool[i];
+            if (b == null) b = pool[i] = new ResponseBuffer(ByteBuffer.allocateDirect(INITIAL_CAPACITY));
+            if (!b.inFlight) {
+                b.buf = b.initial;
+                b.buf.clear();
+                return b;
+            }
+        }
+        // the previous responses have not left yet, a heap buffer is left to the young gen
+        return new ResponseBuffer(ByteBuffer.allocate(HEAP_CAPACITY));
+    }
+
+    public ResponseBuffer beginShortVisits() {
+        put(VISITS_START);
+        firstVisit = true;
+        return this;
+    }
+
+    @Override
+    public void accept(int mark, long visitedAt, Location location) {
+        if (!firstVisit) put((byte) ',');
+        firstVisit = false;
+        put(MARK);
+        putLong(mark);
+        put(VISITED_AT);
+        putLong(visitedAt);
+        put(PLACE);
+        put(location.placeJson());
+        put((byte) '}');
+    }
+
+    public ResponseBuffer endShortVisits() {
+        put(VISITS_END);
+        return this;
+    }
+
+    // same as BigDecimal division with scale 5 and HALF_UP, zero sum is written as 0 like BigDecimal.ZERO
+    public ResponseBuffer avg(int sum, int count) {
+        put(AVG);
+        if (sum == 0) {
+            put((byte) '0');
+        } else {
+            long scaled = (2L * sum * AVG_SCALE + count) / (2L * count);
+            putLong(scaled / AVG_SCALE);
+            put((byte) '.');
+            long fraction = scaled % AVG_SCALE;
+            for (int d = AVG_SCALE / 10; d > 0; d /= 10) {
+                put((byte) ('0' + fraction / d % 10));
+            }
+        }
+        put((byte) '}');
+        return this;
+    }
+
+    // a body built before, see CachedResponses
+    public ResponseBuffer cached(byte[] body) {
+        put(body);
+        return this;
+    }
+
+    // copy of the bytes written so far, the buffer is left as it is
+    public byte[] toBytes() {
+        ByteBuffer written = buf.duplicate();
+        written.flip();
+        byte[] bytes = new byte[written.remaining()];
+        written.get(bytes);
+        return bytes;
+    }
+
+    // written bytes, ready to be sent
+    public ByteBuffer flip() {
+        buf.flip();
+        return buf;
+    }
+
+    public void writeTo(HttpServletResponse response) throws IOException {
+        ByteBuffer body = flip();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(body.remaining());
+        ServletOutputStream out = response.getOutputStream();
+        if (out instanceof ServletOutputStreamImpl) {
+            ((ServletOutputStreamImpl) out).write(body);
+        } else {
+            byte[] chunk = new byte[body.remaining()];
+            body.get(chunk);
+            out.write(chunk);
+        }
+    }
+
+    // used by RawRouter on the IO thread, the send may complete after the handler returns
+    public void send(HttpServerExchange exchange) {
+        ByteBuffer body = flip();
+        exchange.setStatusCode(HttpServletResponse.SC_OK);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        exchange.getResponseHeaders().put(Headers.CONTENT_LENGTH, body.remaining());
+        inFlight = true;
+        exchange.getResponseSender().send(body, release);
+    }
+
+    private void put(byte b) {
+        ensureRemaining(1);
+        buf.put(b);
+    }
+
+    private void put(byte[] bytes) {
+        ensureRemaining(bytes.length);
+        buf.put(bytes);
+    }
+
+    private void putLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            put(bytes(Long.toString(v)));
+            return;
+        }
+        if (v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        ensureRemaining(digits.length - i);
+        buf.put(digits, i, digits.length - i);
+    }
+
+    // a response over the capacity moves to a heap buffer, the direct one is taken again by the next get()
+    private void ensureRemaining(int n) {
+        if (buf.remaining() >= n) return;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+        buf.flip();
+        larger.put(buf);
+        buf = larger;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,17 +1,13 @@
 package org.iofstorm.tengu.tengutravels.controller;
 
-import com.google.gson.Gson;
-import org.iofstorm.tengu.tengutravels.Utils;
+import org.iofstorm.tengu.tengutravels.metrics.Endpoint;
+import org.iofstorm.tengu.tengutravels.metrics.Metrics;
 import org.iofstorm.tengu.tengutravels.model.Gender;
-import org.iofstorm.tengu.tengutravels.model.ShortVisits;
 import org.iofstorm.tengu.tengutravels.model.User;
 import org.iofstorm.tengu.tengutravels.service.UserService;
-import org.iofstorm.tengu.tengutravels.service.VisitService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -19,22 +15,15 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
 
-import javax.servlet.http.HttpServletRequest;
-import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.NOT_FOUND;
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.OK;
-import static org.iofstorm.tengu.tengutravels.model.User.BIRTH_DATE;
 import static org.iofstorm.tengu.tengutravels.model.User.BIRTH_DATE_MAX;
 import static org.iofstorm.tengu.tengutravels.model.User.BIRTH_DATE_MIN;
-import static org.iofstorm.tengu.tengutravels.model.User.EMAIL;
 import static org.iofstorm.tengu.tengutravels.model.User.EMAIL_LENGTH;
-import static org.iofstorm.tengu.tengutravels.model.User.FIRST_NAME;
-import static org.iofstorm.tengu.tengutravels.model.User.GENDER;
-import static org.iofstorm.tengu.tengutravels.model.User.ID;
-import static org.iofstorm.tengu.tengutravels.model.User.LAST_NAME;
 import static org.iofstorm.tengu.tengutravels.model.User.NAME_LENGTH;
 
 @RestController
@@ -44,130 +33,90 @@ public class UserController {
     @Autowired
     private UserService userService;
     @Autowired
-    private VisitService visitService;
-    @Autowired
     private ControllerHelper controllerHelper;
     @Autowired
-    private Gson gson;
+    private Metrics metrics;
     @Autowired
-    private Utils utils;
+    private CachedResponses cachedResponses;
 
     @RequestMapping(method = RequestMethod.GET, path = "/{userId}")
-    public ResponseEntity<String> getUser(@PathVariable("userId") Integer userId) {
-        if (userId == null) return controllerHelper.badRequest();
-        User user = userService.getUserWithoutLock(userId);
-        if (user == null) return controllerHelper.notFound();
-        String userStr = gson.toJson(user);
-        return ResponseEntity.status(HttpStatus.OK)
-                .contentType(MediaType.APPLICATION_JSON)
-                .contentLength(userStr.getBytes().length)
-                .body(userStr);
+    public ResponseEntity<byte[]> getUser(@PathVariable("userId") String userId) {
+        long startTs = System.nanoTime();
+        ResponseEntity<byte[]> response = user(userId);
+        metrics.record(Endpoint.GET_USER, response, startTs);
+        return response;
     }
 
     @RequestMapping(method = RequestMethod.GET, path = "/{userId}/visits", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
-    public ResponseEntity<String> getUserVisits(@PathVariable("userId") Integer userId,
-                                                @RequestParam(value = "fromDate", required = false) Long fromDate,
-                                                @RequestParam(value = "toDate", required = false) Long toDate,
+    public ResponseEntity<byte[]> getUserVisits(@PathVariable("userId") String userId,
+                                                @RequestParam(value = "fromDate", required = false) String fromDate,
+                                                @RequestParam(value = "toDate", required = false) String toDate,
                                                 @RequestParam(value = "country", required = false) String country,
-                                                @RequestParam(value = "toDistance", required = false) Integer toDistance) {
-        if (userId == null) return controllerHelper.badRequest();
-        ShortVisits shortVisits = visitService.getUserVisits(userId, fromDate, toDate, country, toDistance);
-        if (shortVisits == null) return controllerHelper.notFound();
-        String visits = gson.toJson(shortVisits);
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_JSON)
-                .contentLength(visits.getBytes().length)
-                .body(visits);
+                                                @RequestParam(value = "toDistance", required = false) String toDistance,
+                                                HttpServletResponse response) throws IOException {
+        long startTs = System.nanoTime();
+        ResponseEntity<byte[]> result = userVisits(userId, fromDate, toDate, country, toDistance, response);
+        metrics.record(Endpoint.GET_USER_VISITS, Metrics.visitsFilters(fromDate, toDate, country, toDistance), result, startTs);
+        return result;
     }
 
     @RequestMapping(method = RequestMethod.POST, path = "/new", produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<String> createUser(@RequestBody User user) {
-        if (!validateOnCreate(user)) return controllerHelper.badRequest();
-        int code = userService.createUser(user);
-        return code == OK ? controllerHelper.okEmpty() : controllerHelper.badRequest();
+        long startTs = System.nanoTime();
+        ResponseEntity<String> response = create(user);
+        metrics.record(Endpoint.POST_NEW_USER, response, startTs);
+        return response;
     }
 
     @RequestMapping(method = RequestMethod.POST, path = "/{userId}", produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> updateUser(@PathVariable("userId") Integer userId, @RequestBody Map<String, String> userProps) {
-        if (userId == null) return controllerHelper.badRequest();
-        User newUser = validateUpdate(userProps);
-        int code = userService.updateUser(userId, newUser);
-        if (code == OK) return controllerHelper.okEmpty();
-        else if (code == NOT_FOUND) return controllerHelper.notFound();
-        else return controllerHelper.badRequest();
+    public ResponseEntity<String> updateUser(@PathVariable("userId") String userId, @RequestBody byte[] body) {
+        long startTs = System.nanoTime();
+        ResponseEntity<String> response = update(userId, body);
+        metrics.record(Endpoint.POST_USER, response, startTs);
+        return response;
     }
 
+    // ids and params are checked by the handlers, so only unreadable bodies get here
     @ExceptionHandler(Exception.class)
-    public ResponseEntity<String> handleMyException(Exception exception, HttpServletRequest request) {
-        if (exception instanceof HttpMessageNotReadableException) return controllerHelper.badRequest();
-        if (exception instanceof MethodArgumentTypeMismatchException) {
-            String basePath = request.getServletPath();
-            int i = request.getServletPath().indexOf('?');
-            if (i != -1) basePath = basePath.substring(0, i);
-            if (!basePath.matches("/users/[0-9]+[/]?(visits|new)?")) return controllerHelper.notFound();
-        }
+    public ResponseEntity<String> handleMyException(Exception exception) {
         return controllerHelper.badRequest();
     }
 
-    private User validateUpdate(Map<String, String> userProps) {
-        User user = new User();
-        if (userProps.containsKey(ID)) return null;
-        if (userProps.containsKey(EMAIL)) {
-            String o = userProps.get(EMAIL);
-            if (o != null) {
-                if (o.length() > EMAIL_LENGTH) return null;
-                else user.setEmail(o);
-            } else {
-                return null;
-            }
-        }
-        if (userProps.containsKey(FIRST_NAME)) {
-            String o = userProps.get(FIRST_NAME);
-            if (o != null) {
-                if (o.length() > NAME_LENGTH) return null;
-                else user.setFirstName(o);
-            } else {
-                return null;
-            }
-        }
-        if (userProps.containsKey(LAST_NAME)) {
-            String o = userProps.get(LAST_NAME);
-            if (o != null) {
-                if (o.length() > NAME_LENGTH) return null;
-                else user.setLastName(o);
-            } else {
-                return null;
-            }
-        }
-        if (userProps.containsKey(GENDER)) {
-            String o = userProps.get(GENDER);
-            if (o != null) {
-                if (utils.notMorF(o)) return null;
-                else user.setGender(Gender.fromString(o));
-            } else {
-                return null;
-            }
-        }
-        if (userProps.containsKey(BIRTH_DATE)) {
-            String o = userProps.get(BIRTH_DATE);
-            if (o != null) {
-                try {
-                    long bd = Long.valueOf(o);
-                    if (bd < BIRTH_DATE_MIN || bd > BIRTH_DATE_MAX) {
-                        return null;
-                    } else {
-                        user.setBirthDate(bd);
-                        user.setAge(utils.calcAge(bd));
-                    }
-                } catch (NumberFormatException e) {
-                    return null;
-                }
-            } else {
-                return null;
-            }
+    private ResponseEntity<byte[]> user(String userId) {
+        if (!Params.isInt(userId)) return controllerHelper.idError(userId);
+        User user = userService.getUserWithoutLock(Params.parseInt(userId));
+        if (user == null) return controllerHelper.notFound();
+        return controllerHelper.okJson(user.jsonBytes());
+    }
+
+    private ResponseEntity<byte[]> userVisits(String userId, String fromDate, String toDate, String country, String toDistance,
+                                              HttpServletResponse response) throws IOException {
+        if (!Params.isInt(userId)) return controllerHelper.idError(userId);
+        if (!Params.isLongParam(fromDate) || !Params.isLongParam(toDate) || !Params.isIntParam(toDistance)) {
+            return controllerHelper.badRequest();
         }
+        ResponseBuffer out = cachedResponses.userVisits(Params.parseInt(userId), Params.longParam(fromDate), Params.longParam(toDate),
+                country, Params.intParam(toDistance));
+        if (out == null) return controllerHelper.notFound();
+        out.writeTo(response);
+        return null; // body is already written
+    }
 
-        return user;
+    private ResponseEntity<String> create(User user) {
+        if (!validateOnCreate(user)) return controllerHelper.badRequest();
+        int code = userService.createUser(user);
+        return code == OK ? controllerHelper.okEmpty() : controllerHelper.badRequest();
+    }
+
+    private ResponseEntity<String> update(String userId, byte[] body) {
+        if (!Params.isInt(userId)) return controllerHelper.idError(userId);
+        PatchParser parser = new PatchParser(body);
+        User newUser = parser.user();
+        if (parser.status() == PatchParser.MALFORMED) return controllerHelper.badRequest();
+        int code = userService.updateUser(Params.parseInt(userId), newUser);
+        if (code == OK) return controllerHelper.okEmpty();
+        else if (code == NOT_FOUND) return controllerHelper.notFound();
+        else return controllerHelper.badRequest();
     }
 
     private boolean validateOnCreate(User user) {
@@ -179,11 +128,7 @@ public class UserController {
             return false;
         if (user.getLastName() == null || (user.getLastName() != null && user.getLastName().length() > NAME_LENGTH))
             return false;
-        if (user.getBirthDate() == Long.MIN_VALUE || (user.getBirthDate() < BIRTH_DATE_MIN || user.getBirthDate() > BIRTH_DATE_MAX)) {
-            return false;
-        } else {
-            user.setAge(utils.calcAge(user.getBirthDate()));
-        }
+        if (user.getBirthDate() == Long.MIN_VALUE || (user.getBirthDate() < BIRTH_DATE_MIN || user.getBirthDate() > BIRTH_DATE_MAX)) return false;
         if (user.getGender() == null || (user.getGender() != null && user.getGender() == Gender.UNKNOWN)) return false;
         return true;
     }
@@ -0,0 +1,270 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import io.undertow.server.Connectors;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.SameThreadExecutor;
+import org.iofstorm.tengu.tengutravels.loader.DataLoader;
+import org.iofstorm.tengu.tengutravels.metrics.Metrics;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.iofstorm.tengu.tengutravels.store.IdStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms the JIT up once the server listens: a synthetic mix of GETs against loaded ids, plus POSTs which
+ * validation rejects, goes through the full handler stack over loopback for the configured time, responses
+ * are read and dropped. The mix changes no data. Until the server is ready every other request is parked
+ * by the handler this wraps the chain with, and resumed as soon as the warm-up is over.
+ */
+@Component
+public class WarmUp implements HttpHandler, ApplicationListener<WebServerInitializedEvent> {
+    private static final Logger log = LoggerFactory.getLogger(WarmUp.class);
+
+    private static final String HEADER = "X-Tengu-Warm-Up";
+    private static final int SAMPLE_SIZE = 4096;
+    private static final long DATE_FROM = 946684800L; // 2000-01-01
+    private static final long DATE_TO = 1420070400L; // 2015-01-01
+
+    @Autowired
+    private DataLoader dataLoader;
+
+    @Autowired
+    private VisitService visitService;
+
+    @Autowired
+    private Metrics metrics;
+
+    // -1 takes the duration of the run mode, 0 disables the warm-up
+    @Value("${tengu.warm-up.millis}")
+    private int millis;
+
+    // told apart from client requests by this value of the header
+    private final String token = UUID.randomUUID().toString();
+    private final List<HttpServerExchange> parked = new ArrayList<>();
+    private volatile boolean ready;
+    private boolean started;
+
+    private HttpHandler next;
+
+    private int[] userIds;
+    private int[] locationIds;
+    private int[] visitIds;
+    private String[] countries;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // used as the initial handler chain wrapper of the servlet deployment, outside of any other wrapper
+    public HttpHandler wrap(HttpHandler next) {
+        this.next = next;
+        return this;
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+        if (ready || token.equals(exchange.getRequestHeaders().getFirst(HEADER))) {
+            next.handleRequest(exchange);
+        } else {
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () -> park(exchange));
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(WebServerInitializedEvent event) {
+        synchronized (this) {
+            if (started) return;
+            started = true;
+        }
+        int duration = millis >= 0 ? millis : dataLoader.getOptions().getMode().getWarmUpMillis();
+        try {
+            if (duration > 0 && sample()) run("http://127.0.0.1:" + event.getWebServer().getPort(), duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // latencies of the cold code and of the synthetic mix would only skew what clients see
+            metrics.reset();
+            setReady();
+        }
+    }
+
+    private void run(String base, int duration) throws InterruptedException {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        long deadline = System.currentTimeMillis() + duration;
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+
+        log.info("warming up for {} ms on {} threads...", duration, threads);
+
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                byte[] buf = new byte[8192];
+                Random random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < deadline) {
+                    try {
+                        send(base, random, buf);
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                    requests.incrementAndGet();
+                }
+            }, "warm-up-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) worker.join();
+
+        log.info("warm-up sent {} requests, {} of them failed", requests.get(), failures.get());
+    }
+
+    private void send(String base, Random random, byte[] buf) throws IOException {
+        int op = random.nextInt(100);
+        if (op < 15) {
+            request(base + "/users/" + pick(userIds, random), null, buf);
+        } else if (op < 30) {
+            request(base + "/locations/" + pick(locationIds, random), null, buf);
+        } else if (op < 45) {
+            request(base + "/visits/" + pick(visitIds, random), null, buf);
+        } else if (op < 70) {
+            request(base + "/users/" + pick(userIds, random) + "/visits" + userVisitsQuery(random), null, buf);
+        } else if (op < 92) {
+            request(base + "/locations/" + pick(locationIds, random) + "/avg" + averageQuery(random), null, buf);
+        } else if (op < 95) {
+            // not found and bad request answers
+            request(base + (random.nextBoolean() ? "/users/" + -pick(userIds, random) : "/locations/" + pick(locationIds, random) + "/avg?gender=x"), null, buf);
+        } else {
+            // an existing id with no other fields is rejected by validation, nothing is written or logged
+            int entity = random.nextInt(3);
+            String path = entity == 0 ? "/users/" : entity == 1 ? "/locations/" : "/visits/";
+            int id = pick(entity == 0 ? userIds : entity == 1 ? locationIds : visitIds, random);
+            byte[] body = ("{\"id\":" + id + "}").getBytes(StandardCharsets.UTF_8);
+            request(base + path + (random.nextBoolean() ? "new" : String.valueOf(id)), body, buf);
+        }
+    }
+
+    private String userVisitsQuery(Random random) throws UnsupportedEncodingException {
+        StringBuilder query = new StringBuilder();
+        long fromDate = DATE_FROM + (long) (random.nextDouble() * (DATE_TO - DATE_FROM));
+        if (random.nextBoolean()) param(query, "fromDate", String.valueOf(fromDate));
+        if (random.nextBoolean()) param(query, "toDate", String.valueOf(fromDate + random.nextInt(Integer.MAX_VALUE)));
+        if (random.nextInt(3) == 0) param(query, "country", URLEncoder.encode(countries[random.nextInt(countries.length)], "UTF-8"));
+        if (random.nextInt(3) == 0) param(query, "toDistance", String.valueOf(random.nextInt(100)));
+        return query.toString();
+    }
+
+    private String averageQuery(Random random) {
+        StringBuilder query = new StringBuilder();
+        long fromDate = DATE_FROM + (long) (random.nextDouble() * (DATE_TO - DATE_FROM));
+        int fromAge = random.nextInt(70);
+        if (random.nextBoolean()) param(query, "fromDate", String.valueOf(fromDate));
+        if (random.nextBoolean()) param(query, "toDate", String.valueOf(fromDate + random.nextInt(Integer.MAX_VALUE)));
+        if (random.nextInt(3) == 0) param(query, "fromAge", String.valueOf(fromAge));
+        if (random.nextInt(3) == 0) param(query, "toAge", String.valueOf(fromAge + random.nextInt(40)));
+        if (random.nextInt(3) == 0) param(query, "gender", random.nextBoolean() ? "m" : "f");
+        return query.toString();
+    }
+
+    private static void param(StringBuilder query, String name, String value) {
+        query.append(query.length() == 0 ? '?' : '&').append(name).append('=').append(value);
+    }
+
+    // the response is read to the end, so the connection goes back to the keep-alive cache
+    private void request(String url, byte[] body, byte[] buf) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty(HEADER, token);
+        if (body != null) {
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in == null) return;
+        try (InputStream response = in) {
+            while (response.read(buf) >= 0) ;
+        }
+    }
+
+    // false if there is nothing to warm up on
+    private boolean sample() {
+        Random random = new Random(17);
+        userIds = sample(UserService.users, random);
+        locationIds = sample(LocationService.locations, random);
+        visitIds = sample(visitService.getVisits(), random);
+        if (userIds.length == 0 || locationIds.length == 0 || visitIds.length == 0) return false;
+        countries = new String[locationIds.length];
+        for (int i = 0; i < locationIds.length; i++) countries[i] = LocationService.locations.get(locationIds[i]).getCountry();
+        return true;
+    }
+
+    // reservoir sample of the ids
+    private static int[] sample(IdStore<?> store, Random random) {
+        int[] ids = new int[SAMPLE_SIZE];
+        int[] seen = new int[1];
+        store.forEach((id, value) -> {
+            int n = seen[0]++;
+            if (n < SAMPLE_SIZE) ids[n] = id;
+            else {
+                int i = random.nextInt(n + 1);
+                if (i < SAMPLE_SIZE) ids[i] = id;
+            }
+        });
+        return seen[0] < SAMPLE_SIZE ? Arrays.copyOf(ids, seen[0]) : ids;
+    }
+
+    private static int pick(int[] ids, Random random) {
+        return ids[random.nextInt(ids.length)];
+    }
+
+    private void park(HttpServerExchange exchange) {
+        synchronized (parked) {
+            if (!ready) {
+                parked.add(exchange);
+                return;
+            }
+        }
+        resume(exchange);
+    }
+
+    private void resume(HttpServerExchange exchange) {
+        exchange.getIoThread().execute(() -> Connectors.executeRootHandler(next, exchange));
+    }
+
+    private void setReady() {
+        List<HttpServerExchange> waiting;
+        synchronized (parked) {
+            ready = true;
+            waiting = new ArrayList<>(parked);
+            parked.clear();
+        }
+        if (!waiting.isEmpty()) log.info("{} parked requests are resumed", waiting.size());
+        waiting.forEach(this::resume);
+    }
+}
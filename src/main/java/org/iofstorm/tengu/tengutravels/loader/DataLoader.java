@@ -1,11 +1,9 @@
 package org.iofstorm.tengu.tengutravels.loader;
 
 import com.google.gson.Gson;
-import com.google.gson.stream.JsonReader;
-import org.apache.commons.io.IOUtils;
-import org.iofstorm.tengu.tengutravels.model.Locations;
-import org.iofstorm.tengu.tengutravels.model.Users;
-import org.iofstorm.tengu.tengutravels.model.Visits;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
 import org.iofstorm.tengu.tengutravels.service.LocationService;
 import org.iofstorm.tengu.tengutravels.service.UserService;
 import org.iofstorm.tengu.tengutravels.service.VisitService;
@@ -19,27 +17,26 @@ import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.time.Instant;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Enumeration;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 @Component
 public class DataLoader {
     private static final Logger log = LoggerFactory.getLogger(DataLoader.class);
+    private static final String OPTIONS_FILE = "options.txt";
 
+    // reference time of the dataset, ages are counted at it
     public static LocalDateTime NOW_TS;
 
     @Autowired
@@ -58,76 +55,194 @@ public class DataLoader {
     private VisitService visitService;
 
     @Autowired
-    public DataLoader(@Value("${tengu.data.path}") String zipFilePath) throws IOException, InterruptedException {
+    private Snapshot snapshot;
+
+    @Value("${tengu.snapshot.write-after-load}")
+    private boolean writeSnapshotAfterLoad;
+
+    @Autowired
+    private MutationLog mutationLog;
+
+    private volatile Options options = Options.DEFAULT;
+
+    @Autowired
+    public DataLoader(@Value("${tengu.data.path}") String zipFilePath) {
         this.zipFilePath = Objects.requireNonNull(zipFilePath);
+    }
 
-        if (NOW_TS == null) {
-            log.warn("options.txt was not found!");
-            NOW_TS = LocalDateTime.ofInstant(Instant.ofEpochSecond(1503695452), ZoneId.systemDefault());
-        }
+    public Options getOptions() {
+        return options;
     }
 
     @PostConstruct
     public void loadData() throws IOException, InterruptedException {
-        if (!new File(zipFilePath).exists()) {
+        File zip = new File(zipFilePath);
+        if (!zip.exists()) {
             log.warn("data file {} not found", zipFilePath);
+            apply(Options.DEFAULT);
             return;
         }
 
-        log.info("loading users and locations...");
-
         long startTs = System.currentTimeMillis();
 
-        int usersCount = 0;
-        int locationsCount = 0;
-
-        try (ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipFilePath))) {
-            ZipEntry entry = zipIn.getNextEntry();
-            // iterates over entries in the zip file
-            while (entry != null) {
-                if (entry.getName().startsWith("users_")) {
-                    JsonReader jsonReader = new JsonReader(new InputStreamReader(zipIn));
-                    Users users = gson.fromJson(jsonReader, Users.class);
-                    userService.load(users.getUsers());
-                    usersCount += users.getUsers().size();
-                } else if (entry.getName().startsWith("locations_")) {
-                    JsonReader jsonReader = new JsonReader(new InputStreamReader(zipIn));
-                    Locations locations = gson.fromJson(jsonReader, Locations.class);
-                    locationService.load(locations.getLocations());
-                    locationsCount += locations.getLocations().size();
-                }
-                zipIn.closeEntry();
-                entry = zipIn.getNextEntry();
+        // the zip is opened once, options.txt has to be applied before anything goes into the stores
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            apply(readOptions(zipFile, zip));
+
+            if (snapshot.isUpToDate(zip)) {
+                snapshot.read();
+                log.info("snapshot was read in {} sec", seconds(startTs));
+            } else {
+                loadZip(zipFile);
+                if (writeSnapshotAfterLoad) writeSnapshot(zip);
             }
         }
 
-        log.info("{} users and {} locations were loaded in {} sec", usersCount, locationsCount, String.format("%.3f", (System.currentTimeMillis() - startTs) / 1000f) );
+        long phaseTs = System.currentTimeMillis();
+        visitService.finishLoad();
 
-        System.gc();
+        log.info("visit indexes and mark aggregates were built in {} sec", seconds(phaseTs));
 
-        log.info("loading visits...");
+        // mutations accepted since the snapshot was written come from the log
+        phaseTs = System.currentTimeMillis();
+        int mutations = mutationLog.replay(zip, this::replayUser, this::replayLocation, this::replayVisit);
 
-        startTs = System.currentTimeMillis();
+        log.info("{} mutations were replayed in {} sec", mutations, seconds(phaseTs));
 
-        int visitsCount = 0;
+        // replayed mutations are folded into a new snapshot and the log starts over, so replay does not grow run
+        // after run. A crash between the two replays the old log over the new snapshot, which is harmless
+        if (mutations > 0 && writeSnapshotAfterLoad && writeSnapshot(zip)) mutationLog.startOver();
+        mutationLog.open(zip);
 
-        try (ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipFilePath))) {
-            ZipEntry entry = zipIn.getNextEntry();
-            // iterates over entries in the zip file
-            while (entry != null) {
-                if (entry.getName().startsWith("visits_")) {
-                    JsonReader jsonReader = new JsonReader(new InputStreamReader(zipIn));
-                    Visits visits = gson.fromJson(jsonReader, Visits.class);
-                    visitService.load(visits);
-                    visitsCount += visits.getVisits().size();
+        System.gc();
+
+        log.info("data loading took {} sec", seconds(startTs));
+    }
+
+    // options.txt comes inside the zip, or next to it like /tmp/data/options.txt of the contest
+    private Options readOptions(ZipFile zipFile, File zip) {
+        ZipEntry entry = zipFile.getEntry(OPTIONS_FILE);
+        File file = new File(zip.getAbsoluteFile().getParentFile(), OPTIONS_FILE);
+        try {
+            if (entry != null) {
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    return Options.parse(in);
                 }
-                zipIn.closeEntry();
-                entry = zipIn.getNextEntry();
             }
+            if (file.isFile()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    return Options.parse(in);
+                }
+            }
+            log.warn("options.txt was not found!");
+        } catch (IOException e) {
+            log.warn("failed to read options.txt", e);
         }
+        return Options.DEFAULT;
+    }
 
-        log.info("{} visits were loaded in {} sec", visitsCount, String.format("%.3f", (System.currentTimeMillis() - startTs) / 1000f));
+    private void apply(Options options) {
+        this.options = options;
+        NOW_TS = options.getReferenceTime();
+        RunMode mode = options.getMode();
+        userService.reserve(mode.getExpectedUsers());
+        locationService.reserve(mode.getExpectedLocations());
+        visitService.reserve(mode.getExpectedUsers(), mode.getExpectedLocations(), mode.getExpectedVisits());
 
-        System.gc();
+        log.info("{} run, reference time {} ({})", mode.name().toLowerCase(), options.getTimestamp(), NOW_TS);
+    }
+
+    // snapshot is an optimization of the next start, failing to write it must not fail this one
+    private boolean writeSnapshot(File zip) {
+        try {
+            snapshot.write(zip);
+            return true;
+        } catch (IOException e) {
+            log.warn("failed to write snapshot {}", snapshot.getFile(), e);
+            return false;
+        }
+    }
+
+    private void replayUser(User user) {
+        if (userService.userExist(user.getId())) userService.updateUser(user.getId(), user);
+        else userService.createUser(user);
+    }
+
+    private void replayLocation(Location location) {
+        if (LocationService.locations.contains(location.getId())) locationService.updateLocation(location.getId(), location);
+        else locationService.createLocation(location);
+    }
+
+    private void replayVisit(Visit visit) {
+        if (visitService.visitExist(visit.getId())) visitService.updateVisit(visit.getId(), visit);
+        else visitService.createVisit(visit);
+    }
+
+    private void loadZip(ZipFile zipFile) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<ZipEntry> userEntries = new ArrayList<>();
+            List<ZipEntry> locationEntries = new ArrayList<>();
+            List<ZipEntry> visitEntries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().startsWith("users_")) userEntries.add(entry);
+                else if (entry.getName().startsWith("locations_")) locationEntries.add(entry);
+                else if (entry.getName().startsWith("visits_")) visitEntries.add(entry);
+            }
+
+            log.info("loading {} users and {} locations files on {} threads...", userEntries.size(), locationEntries.size(), threads);
+
+            // users and locations are independent, visits are resolved against both so they go in a second phase
+            long phaseTs = System.currentTimeMillis();
+            List<CompletableFuture<Integer>> users = ingestAll(zipFile, userEntries, User.class, userService::load, executor);
+            List<CompletableFuture<Integer>> locations = ingestAll(zipFile, locationEntries, Location.class, locationService::load, executor);
+            int usersCount = sum(users);
+            int locationsCount = sum(locations);
+
+            log.info("{} users and {} locations were loaded in {} sec", usersCount, locationsCount, seconds(phaseTs));
+
+            log.info("loading {} visits files...", visitEntries.size());
+
+            phaseTs = System.currentTimeMillis();
+            List<CompletableFuture<Integer>> visits = ingestAll(zipFile, visitEntries, Visit.class, visitService::load, executor);
+            int visitsCount = sum(visits);
+
+            log.info("{} visits were loaded in {} sec", visitsCount, seconds(phaseTs));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // entries are streamed on the executor straight into the stores, load methods of the services serialize the writes
+    private <T> List<CompletableFuture<Integer>> ingestAll(ZipFile zipFile, List<ZipEntry> entries, Class<T> type,
+                                                           Consumer<List<T>> sink, ExecutorService executor) {
+        EntityStreamReader<T> reader = new EntityStreamReader<>(gson.getAdapter(type), sink);
+        List<CompletableFuture<Integer>> result = new ArrayList<>(entries.size());
+        for (ZipEntry entry : entries) {
+            result.add(CompletableFuture.supplyAsync(() -> ingest(zipFile, entry, reader), executor));
+        }
+        return result;
+    }
+
+    private <T> int ingest(ZipFile zipFile, ZipEntry entry, EntityStreamReader<T> reader) {
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            return reader.read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to read " + entry.getName(), e);
+        }
+    }
+
+    private static int sum(List<CompletableFuture<Integer>> counts) {
+        int sum = 0;
+        for (CompletableFuture<Integer> count : counts) sum += count.join();
+        return sum;
+    }
+
+    static String seconds(long fromTs) {
+        return String.format("%.3f", (System.currentTimeMillis() - fromTs) / 1000f);
     }
 }
@@ -0,0 +1,62 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads {"users":[...]}, {"locations":[...]} or {"visits":[...]} element by element with the entity's
+ * TypeAdapter and hands them over in fixed size batches, so a data file is never materialized as a whole.
+ */
+class EntityStreamReader<T> {
+    static final int BATCH_SIZE = 4096;
+
+    private final TypeAdapter<T> adapter;
+    private final Consumer<List<T>> sink;
+
+    EntityStreamReader(TypeAdapter<T> adapter, Consumer<List<T>> sink) {
+        this.adapter = adapter;
+        this.sink = sink;
+    }
+
+    // returns number of entities read, the batch list is reused so the sink must not keep it
+    int read(InputStream in) throws IOException {
+        List<T> batch = new ArrayList<>(BATCH_SIZE);
+        int count = 0;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                reader.nextName();
+                if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    batch.add(adapter.read(reader));
+                    if (batch.size() == BATCH_SIZE) {
+                        count += flush(batch);
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+        return count + flush(batch);
+    }
+
+    private int flush(List<T> batch) {
+        int size = batch.size();
+        if (size > 0) sink.accept(batch);
+        batch.clear();
+        return size;
+    }
+}
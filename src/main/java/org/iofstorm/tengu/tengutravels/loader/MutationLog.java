@@ -0,0 +1,377 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of accepted POST mutations, replayed over the zip (or its snapshot) on the next start.
+ *
+ * Every record holds the full state of the entity after the mutation, so replaying it is an upsert and
+ * replaying it twice is harmless. Records are appended to an in-memory batch under the stripe lock of the
+ * mutated entity, a single flusher thread writes and fsyncs whole batches (group commit). Creates are appended
+ * before the entity is published, so a record never comes ahead of the records of the entities it refers to;
+ * logs written before that was the case are still replayed, see {@link #replay}.
+ * Layout (big endian): header {magic, version, zip last modified, zip length} followed by records
+ * {int length, int crc32, byte type, entity}, entities are encoded the same way as in {@link Snapshot}.
+ */
+@Component
+public class MutationLog {
+    private static final Logger log = LoggerFactory.getLogger(MutationLog.class);
+
+    private static final int MAGIC = 0x54454E4C; // TENL
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final byte USER = 1;
+    private static final byte LOCATION = 2;
+    private static final byte VISIT = 3;
+    private static final Gender[] GENDERS = Gender.values();
+
+    // sequence of the last record appended by the current thread
+    private static final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+    @Value("${tengu.journal.path}")
+    private String journalPath;
+
+    @Value("${tengu.journal.sync}")
+    private boolean sync;
+
+    private final Object monitor = new Object();
+    private Batch pending = new Batch();
+    private Batch flushing = new Batch();
+    private long appendedSeq;
+    private long durableSeq;
+    private long validEnd = -1;
+    // end of the batches which made it to disk, a failed batch is cut off there
+    private long durableEnd;
+    private volatile boolean open;
+    // set when a batch could not be written, nothing is appended or acknowledged after that
+    private volatile boolean failed;
+    private FileChannel channel;
+    private Thread flusher;
+
+    public boolean isEnabled() {
+        return !journalPath.isEmpty();
+    }
+
+    public File getFile() {
+        return new File(journalPath);
+    }
+
+    // applies records of a log made over the given zip, returns the number of replayed records. A visit whose
+    // user or location is not known yet is put aside with its later records, only its last one is applied after the
+    // rest of the log, every record holds the full state
+    public int replay(File zip, Consumer<User> users, Consumer<Location> locations, Consumer<Visit> visits) throws IOException {
+        File file = getFile();
+        validEnd = -1;
+        if (!isEnabled() || !file.exists() || file.length() < HEADER_SIZE) return 0;
+
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (in.size() > Integer.MAX_VALUE) throw new IOException("mutation log " + file + " is too large to be mapped");
+            MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getLong() != zip.lastModified() || buf.getLong() != zip.length()) {
+                log.info("mutation log {} was made over another data file, it will be started over", file);
+                return 0;
+            }
+
+            CRC32 crc = new CRC32();
+            Map<Integer, byte[]> deferred = new LinkedHashMap<>();
+            int count = 0;
+            validEnd = buf.position();
+            while (buf.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buf.getInt();
+                int checksum = buf.getInt();
+                if (length <= 0 || length > buf.remaining()) break; // torn tail, the record was never acknowledged
+                byte[] record = new byte[length];
+                buf.get(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+
+                ByteBuffer entity = ByteBuffer.wrap(record, 1, length - 1);
+                switch (record[0]) {
+                    case USER:
+                        users.accept(readUser(entity));
+                        break;
+                    case LOCATION:
+                        locations.accept(readLocation(entity));
+                        break;
+                    case VISIT:
+                        int visitId = entity.getInt(entity.position());
+                        if (deferred.containsKey(visitId) || !isResolved(entity)) deferred.put(visitId, record);
+                        else visits.accept(readVisit(entity));
+                        break;
+                    default:
+                        throw new IOException("unknown record type " + record[0] + " in mutation log " + file);
+                }
+                validEnd = buf.position();
+                count++;
+            }
+            for (byte[] record : deferred.values()) {
+                ByteBuffer entity = ByteBuffer.wrap(record, 1, record.length - 1);
+                if (isResolved(entity)) visits.accept(readVisit(entity));
+                else log.warn("visit {} of mutation log {} refers to an unknown user or location, it is dropped", entity.getInt(entity.position()), file);
+            }
+            return count;
+        }
+    }
+
+    // the records accepted by replay() are dropped as well on open(), once they are in a snapshot
+    public void startOver() {
+        validEnd = -1;
+    }
+
+    // starts appending after the records accepted by replay(), anything else in the file is dropped
+    public void open(File zip) throws IOException {
+        if (!isEnabled()) return;
+        File file = getFile();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        if (validEnd < 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(zip.lastModified()).putLong(zip.length()).flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) channel.write(header, header.position());
+            validEnd = HEADER_SIZE;
+        } else if (validEnd < channel.size()) {
+            log.warn("mutation log {} has a torn tail, {} bytes are dropped", file, channel.size() - validEnd);
+            channel.truncate(validEnd);
+        }
+        channel.force(true);
+        channel.position(validEnd);
+        durableEnd = validEnd;
+        failed = false;
+
+        open = true;
+        flusher = new Thread(this::flushLoop, "mutation-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        log.info("appending mutations to {}", file);
+    }
+
+    // callers hold the stripe lock of the mutated entity, so records of one entity are ordered the same way as its mutations
+    public void append(User usr) {
+        if (!open || failed) return;
+        synchronized (monitor) {
+            DataOutputStream out = pending.startRecord(USER);
+            try {
+                out.writeInt(usr.getId());
+                Snapshot.writeString(out, usr.getEmail());
+                Snapshot.writeString(out, usr.getFirstName());
+                Snapshot.writeString(out, usr.getLastName());
+                out.writeByte(usr.getGender().ordinal());
+                out.writeLong(usr.getBirthDate());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finishRecord();
+        }
+    }
+
+    public void append(Location loc) {
+        if (!open || failed) return;
+        synchronized (monitor) {
+            DataOutputStream out = pending.startRecord(LOCATION);
+            try {
+                out.writeInt(loc.getId());
+                Snapshot.writeString(out, loc.getPlace());
+                Snapshot.writeString(out, loc.getCountry());
+                Snapshot.writeString(out, loc.getCity());
+                out.writeInt(loc.getDistance());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finishRecord();
+        }
+    }
+
+    public void append(Visit vst) {
+        if (!open || failed) return;
+        synchronized (monitor) {
+            DataOutputStream out = pending.startRecord(VISIT);
+            try {
+                out.writeInt(vst.getId());
+                out.writeInt(vst.getUserId());
+                out.writeInt(vst.getLocationId());
+                out.writeLong(vst.getVisitedAt());
+                out.writeByte(vst.getMark());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finishRecord();
+        }
+    }
+
+    // blocks until the records appended by the current thread are on disk, called before the response is sent.
+    // False if they never will be, the mutation must not be acknowledged then
+    public boolean awaitDurable() {
+        if (failed) return false;
+        if (!sync || !open) return true;
+        long seq = lastAppended.get()[0];
+        synchronized (monitor) {
+            while (durableSeq < seq && open && !failed) {
+                try {
+                    monitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return durableSeq >= seq;
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        if (!open) return;
+        synchronized (monitor) {
+            open = false;
+            monitor.notifyAll();
+        }
+        flusher.join();
+        channel.close();
+    }
+
+    private void finishRecord() {
+        pending.finishRecord();
+        lastAppended.get()[0] = ++appendedSeq;
+        if (appendedSeq == durableSeq + 1) monitor.notifyAll(); // wakes up an idle flusher
+    }
+
+    // while one batch is written and synced the next one fills up, so concurrent writers share one fsync
+    private void flushLoop() {
+        while (true) {
+            long seq;
+            synchronized (monitor) {
+                while (pending.size() == 0 && open) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0) return;
+                Batch batch = flushing;
+                flushing = pending;
+                pending = batch;
+                seq = appendedSeq;
+            }
+            try {
+                ByteBuffer buf = flushing.asByteBuffer();
+                while (buf.hasRemaining()) channel.write(buf);
+                channel.force(false);
+                durableEnd = channel.position();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            flushing.reset();
+            synchronized (monitor) {
+                durableSeq = seq;
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    // the waiters of the batch and everyone after them get an error, a torn batch is cut off so the next start
+    // replays every record acknowledged before it
+    private void fail(IOException e) {
+        log.error("failed to write {} bytes to mutation log {}, mutations are not acknowledged any more", flushing.size(), journalPath, e);
+        try {
+            channel.truncate(durableEnd);
+            channel.force(false);
+        } catch (IOException truncateFailure) {
+            log.error("failed to cut mutation log {} back to {} bytes", journalPath, durableEnd, truncateFailure);
+        }
+        synchronized (monitor) {
+            failed = true;
+            pending.reset();
+            flushing.reset();
+            monitor.notifyAll();
+        }
+    }
+
+    private static User readUser(ByteBuffer in) {
+        User usr = new User();
+        usr.setId(in.getInt());
+        usr.setEmail(Snapshot.readString(in));
+        usr.setFirstName(Snapshot.readString(in));
+        usr.setLastName(Snapshot.readString(in));
+        usr.setGender(GENDERS[in.get()]);
+        usr.setBirthDate(in.getLong());
+        return usr;
+    }
+
+    private static Location readLocation(ByteBuffer in) {
+        return new Location(in.getInt(), Snapshot.readString(in), Snapshot.readString(in), Snapshot.readString(in), in.getInt());
+    }
+
+    private static boolean isResolved(ByteBuffer visit) {
+        int p = visit.position();
+        return UserService.users.contains(visit.getInt(p + 4)) && LocationService.locations.contains(visit.getInt(p + 8));
+    }
+
+    private static Visit readVisit(ByteBuffer in) {
+        Visit vst = new Visit();
+        vst.setId(in.getInt());
+        vst.setUser(UserService.users.get(in.getInt()));
+        vst.setLocation(LocationService.locations.get(in.getInt()));
+        vst.setVisitedAt(in.getLong());
+        vst.setMark(in.get());
+        return vst;
+    }
+
+    private static final class Batch extends ByteArrayOutputStream {
+        private final DataOutputStream out = new DataOutputStream(this);
+        private final CRC32 crc = new CRC32();
+        private int recordStart;
+
+        Batch() {
+            super(1 << 16);
+        }
+
+        DataOutputStream startRecord(byte type) {
+            recordStart = count;
+            // length and checksum are patched in finishRecord()
+            for (int i = 0; i < RECORD_HEADER_SIZE; i++) write(0);
+            write(type);
+            return out;
+        }
+
+        void finishRecord() {
+            int bodyStart = recordStart + RECORD_HEADER_SIZE;
+            int length = count - bodyStart;
+            crc.reset();
+            crc.update(buf, bodyStart, length);
+            ByteBuffer.wrap(buf, recordStart, RECORD_HEADER_SIZE).putInt(length).putInt((int) crc.getValue());
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
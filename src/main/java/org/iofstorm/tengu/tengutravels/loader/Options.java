@@ -0,0 +1,54 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Contents of options.txt which comes with the data: the reference time of the dataset in epoch seconds
+ * on the first line, 0 for the test run or 1 for the rating run on the second one.
+ */
+public class Options {
+    // public test data timestamp and the larger capacities, for a run without options.txt
+    public static final Options DEFAULT = new Options(1503695452L, RunMode.RATING);
+
+    private final long timestamp;
+    private final RunMode mode;
+
+    public Options(long timestamp, RunMode mode) {
+        this.timestamp = timestamp;
+        this.mode = mode;
+    }
+
+    // a missing mode line means the rating run, it only costs memory to presize for it
+    public static Options parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        String timestamp = reader.readLine();
+        String mode = reader.readLine();
+        if (timestamp == null) throw new IOException("options.txt is empty");
+        try {
+            long ts = Long.parseLong(timestamp.trim());
+            if (mode == null || mode.trim().isEmpty()) return new Options(ts, RunMode.RATING);
+            return new Options(ts, Integer.parseInt(mode.trim()) == 0 ? RunMode.TEST : RunMode.RATING);
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed options.txt", e);
+        }
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // ages are counted in UTC, like the birth dates
+    public LocalDateTime getReferenceTime() {
+        return LocalDateTime.ofEpochSecond(timestamp, 0, ZoneOffset.UTC);
+    }
+
+    public RunMode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,40 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+/**
+ * Kind of the run announced by options.txt, picks the capacities the stores are presized to
+ * and how long the server is warmed up before it takes requests.
+ */
+public enum RunMode {
+    // about 1k users, 800 locations and 10k visits
+    TEST(20_000, 20_000, 200_000, 2_000),
+    // about 1M users, 800k locations and 10M visits
+    RATING(1_041_000, 810_000, 10_041_000, 15_000);
+
+    private final int expectedUsers;
+    private final int expectedLocations;
+    private final int expectedVisits;
+    private final int warmUpMillis;
+
+    RunMode(int expectedUsers, int expectedLocations, int expectedVisits, int warmUpMillis) {
+        this.expectedUsers = expectedUsers;
+        this.expectedLocations = expectedLocations;
+        this.expectedVisits = expectedVisits;
+        this.warmUpMillis = warmUpMillis;
+    }
+
+    public int getExpectedUsers() {
+        return expectedUsers;
+    }
+
+    public int getExpectedLocations() {
+        return expectedLocations;
+    }
+
+    public int getExpectedVisits() {
+        return expectedVisits;
+    }
+
+    public int getWarmUpMillis() {
+        return warmUpMillis;
+    }
+}
@@ -0,0 +1,274 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.iofstorm.tengu.tengutravels.store.IdStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary image of users, locations and visits, so a restart does not have to parse the json zip again.
+ *
+ * Layout (big endian): header {magic, version, zip last modified, zip length, users, locations, visits}
+ * followed by the users, locations and visits sections and a trailer {length before the trailer, crc32 of it}.
+ * Strings are int length (-1 for null) + utf-8 bytes. The file is synced before it replaces the previous one.
+ * The snapshot is only used when its header matches the current zip. It holds the zip state, plus the mutations
+ * replayed from the log when it was rewritten at a start.
+ */
+@Component
+public class Snapshot {
+    private static final Logger log = LoggerFactory.getLogger(Snapshot.class);
+
+    private static final int MAGIC = 0x54454E47; // TENG
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+    private static final int TRAILER_SIZE = 8 + 4;
+    private static final int BATCH_SIZE = EntityStreamReader.BATCH_SIZE;
+    private static final Gender[] GENDERS = Gender.values();
+
+    @Value("${tengu.snapshot.path}")
+    private String snapshotPath;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private LocationService locationService;
+
+    @Autowired
+    private VisitService visitService;
+
+    public File getFile() {
+        return new File(snapshotPath);
+    }
+
+    // true if there is a snapshot made from the given zip
+    public boolean isUpToDate(File zip) {
+        File file = getFile();
+        if (!file.exists() || file.lastModified() < zip.lastModified()) return false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) return false;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) ;
+            header.flip();
+            if (header.getInt() != MAGIC) return false;
+            int version = header.getInt();
+            if (version != VERSION) {
+                log.info("snapshot {} has version {}, expected {}", file, version, VERSION);
+                return false;
+            }
+            if (header.getLong() != zip.lastModified() || header.getLong() != zip.length()) return false;
+            return isComplete(channel, file);
+        } catch (IOException e) {
+            log.warn("failed to read snapshot header of {}", file, e);
+            return false;
+        }
+    }
+
+    // called while loading, before the server accepts requests, so no mutation runs concurrently
+    public void write(File zip) throws IOException {
+        File file = getFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        long startTs = System.currentTimeMillis();
+
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(zip.lastModified());
+            out.writeLong(zip.length());
+            out.writeInt(UserService.users.size());
+            out.writeInt(LocationService.locations.size());
+            out.writeInt(visitService.getVisits().size());
+
+            forEach(UserService.users, usr -> {
+                out.writeInt(usr.getId());
+                writeString(out, usr.getEmail());
+                writeString(out, usr.getFirstName());
+                writeString(out, usr.getLastName());
+                out.writeByte(usr.getGender().ordinal());
+                out.writeLong(usr.getBirthDate());
+            });
+            forEach(LocationService.locations, loc -> {
+                out.writeInt(loc.getId());
+                writeString(out, loc.getPlace());
+                writeString(out, loc.getCountry());
+                writeString(out, loc.getCity());
+                out.writeInt(loc.getDistance());
+            });
+            forEach(visitService.getVisits(), vst -> {
+                out.writeInt(vst.getId());
+                out.writeInt(vst.getUserId());
+                out.writeInt(vst.getLocationId());
+                out.writeLong(vst.getVisitedAt());
+                out.writeByte(vst.getMark());
+            });
+
+            writeTrailer(out, checked);
+            fileOut.getFD().sync();
+        }
+        // the mutation log is cut once the snapshot holds its records, so the rename has to be on disk as well
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+
+        log.info("snapshot {} ({} Mb) was written in {} sec", file, file.length() >> 20, DataLoader.seconds(startTs));
+    }
+
+    // fills empty stores from the snapshot, visit indexes and mark aggregates are left to VisitService.finishLoad()
+    public void read() throws IOException {
+        File file = getFile();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("snapshot " + file + " is too large to be mapped");
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.position(HEADER_SIZE - 12);
+            int usersCount = in.getInt();
+            int locationsCount = in.getInt();
+            int visitsCount = in.getInt();
+
+            List<User> users = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < usersCount; i++) {
+                User usr = new User();
+                usr.setId(in.getInt());
+                usr.setEmail(readString(in));
+                usr.setFirstName(readString(in));
+                usr.setLastName(readString(in));
+                usr.setGender(GENDERS[in.get()]);
+                usr.setBirthDate(in.getLong());
+                users.add(usr);
+                if (users.size() == BATCH_SIZE || i == usersCount - 1) {
+                    userService.load(users);
+                    users.clear();
+                }
+            }
+
+            List<Location> locations = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < locationsCount; i++) {
+                locations.add(new Location(in.getInt(), readString(in), readString(in), readString(in), in.getInt()));
+                if (locations.size() == BATCH_SIZE || i == locationsCount - 1) {
+                    locationService.load(locations);
+                    locations.clear();
+                }
+            }
+
+            List<Visit> visits = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < visitsCount; i++) {
+                Visit vst = new Visit();
+                vst.setId(in.getInt());
+                vst.setUser(UserService.users.get(in.getInt()));
+                vst.setLocation(LocationService.locations.get(in.getInt()));
+                vst.setVisitedAt(in.getLong());
+                vst.setMark(in.get());
+                visits.add(vst);
+                if (visits.size() == BATCH_SIZE || i == visitsCount - 1) {
+                    visitService.load(visits);
+                    visits.clear();
+                }
+            }
+
+            log.info("{} users, {} locations and {} visits were read from snapshot {}", usersCount, locationsCount, visitsCount, file);
+        }
+    }
+
+    // the checksum is taken before the trailer goes through it, the stream is flushed
+    static void writeTrailer(DataOutputStream out, CheckedOutputStream checked) throws IOException {
+        long length = out.size();
+        int checksum = (int) checked.getChecksum().getValue();
+        out.writeLong(length);
+        out.writeInt(checksum);
+        out.flush();
+    }
+
+    // a snapshot cut short or damaged is not used, the zip is loaded instead
+    static boolean isComplete(FileChannel channel, File file) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) return false;
+        MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long length = in.getLong((int) size - TRAILER_SIZE);
+        int checksum = in.getInt((int) size - 4);
+        if (length != size - TRAILER_SIZE) {
+            log.warn("snapshot {} is incomplete, it will be written again", file);
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        in.limit((int) length);
+        crc.update(in);
+        if ((int) crc.getValue() != checksum) {
+            log.warn("snapshot {} is damaged, it will be written again", file);
+            return false;
+        }
+        return true;
+    }
+
+    // not every platform can open a directory to sync it, the rename is still atomic there
+    private static void syncDirectory(File dir) {
+        if (dir == null) return;
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("failed to sync directory {}", dir, e);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static <T> void forEach(IdStore<T> store, EntityWriter<T> writer) throws IOException {
+        try {
+            store.forEach((id, value) -> {
+                try {
+                    writer.write(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private interface EntityWriter<T> {
+        void write(T value) throws IOException;
+    }
+}
@@ -0,0 +1,35 @@
+package org.iofstorm.tengu.tengutravels.metrics;
+
+/**
+ * Handlers latencies are recorded for. Query parameters of the filtered GETs are listed in bit order of the
+ * filter mask, so each combination of filters gets its own histograms.
+ */
+public enum Endpoint {
+    GET_USER("get_user"),
+    GET_USER_VISITS("get_user_visits", "fromDate", "toDate", "country", "toDistance"),
+    POST_NEW_USER("post_new_user"),
+    POST_USER("post_user"),
+    GET_LOCATION("get_location"),
+    GET_AVG("get_avg", "fromDate", "toDate", "fromAge", "toAge", "gender"),
+    POST_NEW_LOCATION("post_new_location"),
+    POST_LOCATION("post_location"),
+    GET_VISIT("get_visit"),
+    POST_NEW_VISIT("post_new_visit"),
+    POST_VISIT("post_visit");
+
+    private final String label;
+    private final String[] filters;
+
+    Endpoint(String label, String... filters) {
+        this.label = label;
+        this.filters = filters;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String[] getFilters() {
+        return filters;
+    }
+}
@@ -0,0 +1,80 @@
+package org.iofstorm.tengu.tengutravels.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, nanoseconds here, in the spirit of HdrHistogram:
+ * every power of two range is split into 8 linear buckets, so a value is known to within 12.5%.
+ * Recording is an index computation and one atomic increment, it allocates nothing. Counts are
+ * striped by thread id, so threads recording into one histogram mostly don't share a cache line.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    private static final int STRIPES = 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(value));
+    }
+
+    // bucket counts summed over the stripes, a consistent view is not needed for reporting
+    public long[] snapshot() {
+        long[] buckets = new long[BUCKETS];
+        for (int s = 0; s < STRIPES; s++) {
+            for (int b = 0; b < BUCKETS; b++) buckets[b] += counts.get(s * BUCKETS + b);
+        }
+        return buckets;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (exponent - SUB_BITS);
+    }
+
+    // largest value the bucket holds
+    static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+
+    public static long count(long[] buckets) {
+        long count = 0;
+        for (long c : buckets) count += c;
+        return count;
+    }
+
+    // upper bound of the bucket the quantile falls into, 0 for an empty histogram
+    public static long quantile(long[] buckets, double quantile) {
+        long count = count(buckets);
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= rank) return upperBound(b);
+        }
+        return upperBound(buckets.length - 1);
+    }
+
+    public static long max(long[] buckets) {
+        for (int b = buckets.length - 1; b >= 0; b--) {
+            if (buckets[b] > 0) return upperBound(b);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,174 @@
+package org.iofstorm.tengu.tengutravels.metrics;
+
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.service.VisitService;
+import org.iofstorm.tengu.tengutravels.store.LockStripes;
+import org.iofstorm.tengu.tengutravels.store.ResponseCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * Handler latencies by endpoint, filter combination and status (200, 400, 404, anything else),
+ * the time writers waited for the services' locks and the stats of response caches, as Prometheus style text.
+ * A histogram is created on the first request which needs it, recording after that allocates nothing.
+ */
+@Component
+public class Metrics {
+    private static final int STATUSES = 4;
+    private static final String[] STATUS_LABELS = {"200", "400", "404", "other"};
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    // by endpoint ordinal
+    private final List<AtomicReferenceArray<LatencyHistogram>> histograms;
+    // registered by their owners, by name
+    private final Map<String, ResponseCache> caches = new ConcurrentSkipListMap<>();
+
+    @Autowired
+    private VisitService visitService;
+
+    public Metrics() {
+        Endpoint[] endpoints = Endpoint.values();
+        histograms = new ArrayList<>(endpoints.length);
+        for (Endpoint endpoint : endpoints) {
+            histograms.add(new AtomicReferenceArray<>(STATUSES << endpoint.getFilters().length));
+        }
+    }
+
+    public void record(Endpoint endpoint, int filters, int status, long startTs) {
+        long elapsed = System.nanoTime() - startTs;
+        AtomicReferenceArray<LatencyHistogram> byKey = histograms.get(endpoint.ordinal());
+        int key = (filters << 2) | statusIndex(status);
+        LatencyHistogram histogram = byKey.get(key);
+        if (histogram == null) {
+            byKey.compareAndSet(key, null, new LatencyHistogram());
+            histogram = byKey.get(key);
+        }
+        histogram.record(elapsed);
+    }
+
+    // a null response is a body written by the handler itself
+    public void record(Endpoint endpoint, int filters, ResponseEntity<?> response, long startTs) {
+        record(endpoint, filters, response == null ? 200 : response.getStatusCodeValue(), startTs);
+    }
+
+    public void record(Endpoint endpoint, ResponseEntity<?> response, long startTs) {
+        record(endpoint, 0, response, startTs);
+    }
+
+    public void register(String name, ResponseCache cache) {
+        caches.put(name, cache);
+    }
+
+    // a filter is present if it's not null, whether as the raw param or the parsed value
+    public static int visitsFilters(Object fromDate, Object toDate, Object country, Object toDistance) {
+        return bit(fromDate, 0) | bit(toDate, 1) | bit(country, 2) | bit(toDistance, 3);
+    }
+
+    public static int averageFilters(Object fromDate, Object toDate, Object fromAge, Object toAge, Object gender) {
+        return bit(fromDate, 0) | bit(toDate, 1) | bit(fromAge, 2) | bit(toAge, 3) | bit(gender, 4);
+    }
+
+    private static int bit(Object filter, int bit) {
+        return filter == null ? 0 : 1 << bit;
+    }
+
+    private static int statusIndex(int status) {
+        switch (status) {
+            case 200:
+                return 0;
+            case 400:
+                return 1;
+            case 404:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    // drops everything recorded so far, the warm-up calls it once it is over
+    public void reset() {
+        for (AtomicReferenceArray<LatencyHistogram> byKey : histograms) {
+            for (int i = 0; i < byKey.length(); i++) {
+                LatencyHistogram histogram = byKey.get(i);
+                if (histogram != null) histogram.reset();
+            }
+        }
+        UserService.locks.getWaits().reset();
+        LocationService.locks.getWaits().reset();
+        visitService.getLocks().getWaits().reset();
+        caches.values().forEach(ResponseCache::resetStats);
+    }
+
+    // values are in microseconds
+    public String format() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# TYPE tengu_request_micros summary\n");
+        for (Endpoint endpoint : Endpoint.values()) {
+            AtomicReferenceArray<LatencyHistogram> byKey = histograms.get(endpoint.ordinal());
+            for (int key = 0; key < byKey.length(); key++) {
+                LatencyHistogram histogram = byKey.get(key);
+                if (histogram == null) continue;
+                long[] buckets = histogram.snapshot();
+                if (LatencyHistogram.count(buckets) == 0) continue; // emptied by reset()
+                String labels = "endpoint=\"" + endpoint.getLabel() + "\",status=\"" + STATUS_LABELS[key & 3] + "\""
+                        + filterLabels(endpoint, key >> 2);
+                summary(out, "tengu_request_micros", labels, buckets);
+            }
+        }
+        out.append("# TYPE tengu_lock_wait_micros summary\n");
+        lockWaits(out, "users", UserService.locks);
+        lockWaits(out, "locations", LocationService.locks);
+        lockWaits(out, "visits", visitService.getLocks());
+        if (!caches.isEmpty()) {
+            cacheStats(out, "tengu_cache_hits", "counter", ResponseCache::getHits);
+            cacheStats(out, "tengu_cache_misses", "counter", ResponseCache::getMisses);
+            cacheStats(out, "tengu_cache_evictions", "counter", ResponseCache::getEvictions);
+            cacheStats(out, "tengu_cache_bytes", "gauge", ResponseCache::getBytes);
+        }
+        return out.toString();
+    }
+
+    private static String filterLabels(Endpoint endpoint, int filters) {
+        if (endpoint.getFilters().length == 0) return "";
+        StringBuilder labels = new StringBuilder(",filters=\"");
+        for (int bit = 0; bit < endpoint.getFilters().length; bit++) {
+            if ((filters & (1 << bit)) == 0) continue;
+            if (labels.charAt(labels.length() - 1) != '"') labels.append('+');
+            labels.append(endpoint.getFilters()[bit]);
+        }
+        if (filters == 0) labels.append("none");
+        return labels.append('"').toString();
+    }
+
+    private static void lockWaits(StringBuilder out, String name, LockStripes locks) {
+        summary(out, "tengu_lock_wait_micros", "locks=\"" + name + "\"", locks.getWaits().snapshot());
+    }
+
+    private void cacheStats(StringBuilder out, String name, String type, ToLongFunction<ResponseCache> stat) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        caches.forEach((cache, stats) ->
+                out.append(name).append("{cache=\"").append(cache).append("\"} ").append(stat.applyAsLong(stats)).append('\n'));
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, long[] buckets) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(micros(LatencyHistogram.quantile(buckets, quantile))).append('\n');
+        }
+        out.append(name).append("_max{").append(labels).append("} ").append(micros(LatencyHistogram.max(buckets))).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(LatencyHistogram.count(buckets)).append('\n');
+    }
+
+    private static String micros(long nanos) {
+        return String.valueOf(nanos / 1000.0);
+    }
+}
@@ -3,12 +3,18 @@ package org.iofstorm.tengu.tengutravels.model;
 import com.google.gson.TypeAdapter;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
+import org.iofstorm.tengu.tengutravels.store.StringDictionary;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Location {
+    private static final LocationAdapter ADAPTER = new LocationAdapter();
+    private static final AtomicReferenceFieldUpdater<Location, byte[]> JSON = AtomicReferenceFieldUpdater.newUpdater(Location.class, byte[].class, "json");
+
     public static final String ID = "id";
     public static final String PLACE = "place";
     public static final String COUNTRY = "country";
@@ -26,6 +32,10 @@ public class Location {
     // unbounded string
     String place;
 
+    // place as an escaped and quoted utf-8 json string, written as is into short visits,
+    // the dictionary's one once the location is stored
+    private byte[] placeJson;
+
     // unicode string 0-50
     String country;
 
@@ -35,6 +45,12 @@ public class Location {
     // 32 bit int
     int distance;
 
+    // code of the country in LocationService.strings, assigned when the location is stored
+    private int countryCode;
+
+    // utf-8 json of the location served by GET
+    private volatile byte[] json;
+
     public Location() {
     }
 
@@ -60,6 +76,17 @@ public class Location {
 
     public void setPlace(String place) {
         this.place = place;
+        this.placeJson = null;
+    }
+
+    public void setPlace(String place, byte[] placeJson) {
+        this.place = place;
+        this.placeJson = placeJson;
+    }
+
+    public byte[] placeJson() {
+        byte[] j = placeJson;
+        return j != null ? j : StringDictionary.quote(place);
     }
 
     public String getCountry() {
@@ -86,6 +113,32 @@ public class Location {
         this.distance = distance;
     }
 
+    public int getCountryCode() {
+        return countryCode;
+    }
+
+    public void setCountryCode(int countryCode) {
+        this.countryCode = countryCode;
+    }
+
+    // cached the same way as User.jsonBytes()
+    public byte[] jsonBytes() {
+        byte[] j = json;
+        if (j == null) {
+            j = toJson();
+            if (!JSON.compareAndSet(this, null, j)) j = json;
+        }
+        return j;
+    }
+
+    public void refreshJson() {
+        json = toJson();
+    }
+
+    private byte[] toJson() {
+        return ADAPTER.toJson(this).getBytes(StandardCharsets.UTF_8);
+    }
+
     public static class LocationAdapter extends TypeAdapter<Location> {
 
         @Override
@@ -5,10 +5,15 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class User {
+    private static final UserAdapter ADAPTER = new UserAdapter();
+    private static final AtomicReferenceFieldUpdater<User, byte[]> JSON = AtomicReferenceFieldUpdater.newUpdater(User.class, byte[].class, "json");
+
     public static final String ID = "id";
     public static final String FIRST_NAME = "first_name";
     public static final String LAST_NAME = "last_name";
@@ -39,7 +44,8 @@ public class User {
     // long ms from 1970
     private long birthDate = Long.MIN_VALUE;
 
-    int age = Integer.MIN_VALUE;
+    // utf-8 json of the user served by GET, see jsonBytes()
+    private volatile byte[] json;
 
     public Integer getId() {
         return id;
@@ -89,12 +95,23 @@ public class User {
         this.birthDate = birthDate;
     }
 
-    public int getAge() {
-        return age;
+    // built on the first request, updates rebuild it with refreshJson() once all fields are changed
+    public byte[] jsonBytes() {
+        byte[] j = json;
+        if (j == null) {
+            j = toJson();
+            // bytes of a concurrent refreshJson() win, the ones built here may predate the update
+            if (!JSON.compareAndSet(this, null, j)) j = json;
+        }
+        return j;
+    }
+
+    public void refreshJson() {
+        json = toJson();
     }
 
-    public void setAge(int age) {
-        this.age = age;
+    private byte[] toJson() {
+        return ADAPTER.toJson(this).getBytes(StandardCharsets.UTF_8);
     }
 
     public static class UserAdapter extends TypeAdapter<User> {
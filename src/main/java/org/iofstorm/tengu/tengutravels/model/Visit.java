@@ -5,10 +5,16 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import org.iofstorm.tengu.tengutravels.service.LocationService;
 import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.iofstorm.tengu.tengutravels.store.VisitTable;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Visit {
+    private static final VisitAdapter ADAPTER = new VisitAdapter();
+    private static final AtomicReferenceFieldUpdater<Visit, byte[]> JSON = AtomicReferenceFieldUpdater.newUpdater(Visit.class, byte[].class, "json");
+
     public static final String LOCATION_ID = "location";
     public static final String USER_ID = "user";
     public static final String VISITED_AT = "visited_at";
@@ -18,6 +24,8 @@ public class Visit {
     // 32 bit int unique
     private Integer id;
 
+    // fields below hold the visit until it is stored, after that the visit is a view over its VisitTable row
+
     // timestamp, 01.01.2000 - 01.01.2015
     private long visitedAt = Long.MIN_VALUE;
 
@@ -28,6 +36,13 @@ public class Visit {
 
     public User user;
 
+    private VisitTable table;
+
+    private int row = -1;
+
+    // utf-8 json of the visit served by GET
+    private volatile byte[] json;
+
     public Integer getId() {
         return id;
     }
@@ -37,55 +52,53 @@ public class Visit {
     }
 
     public Integer getLocationId() {
+        if (table != null) return table.getLocationId(row);
         return location == null ? null : location.id;
     }
 
     public Integer getUserId() {
+        if (table != null) return table.getUserId(row);
         return user == null ? null : user.id;
     }
 
     public long getVisitedAt() {
-        return visitedAt;
+        return table != null ? table.getVisitedAt(row) : visitedAt;
     }
 
     public void setVisitedAt(long visitedAt) {
-        this.visitedAt = visitedAt;
+        if (table != null) table.setVisitedAt(row, visitedAt);
+        else this.visitedAt = visitedAt;
     }
 
     public int getMark() {
-        return mark;
+        return table != null ? table.getMark(row) : mark;
     }
 
     public void setMark(int mark) {
-        this.mark = mark;
+        if (table != null) table.setMark(row, mark);
+        else this.mark = mark;
     }
 
     public void setLocation(Location location) {
-        this.location = location;
+        if (table != null) table.setLocation(row, location);
+        else this.location = location;
     }
 
     public void setUser(User user) {
-        this.user = user;
-    }
-
-    public String getLocationCountry() {
-        return location.country;
-    }
-
-    public int getLocationDistance() {
-        return location.distance;
+        if (table != null) table.setUser(row, user);
+        else this.user = user;
     }
 
-    public String getLocationPlace() {
-        return location.place;
+    public int getRow() {
+        return row;
     }
 
-    public int getUserAge() {
-        return user.age;
-    }
-
-    public Gender getUserGender() {
-        return user.gender;
+    // turns the visit into a view over the given row, detached state is dropped
+    public void attach(VisitTable table, int row) {
+        this.table = table;
+        this.row = row;
+        this.user = null;
+        this.location = null;
     }
 
     @Override
@@ -95,12 +108,30 @@ public class Visit {
 
         Visit visit = (Visit) o;
 
-        return visitedAt == visit.visitedAt;
+        return id != null ? id.equals(visit.id) : visit.id == null;
     }
 
     @Override
     public int hashCode() {
-        return (int) (visitedAt ^ (visitedAt >>> 32));
+        return id != null ? id : 0;
+    }
+
+    // cached the same way as User.jsonBytes()
+    public byte[] jsonBytes() {
+        byte[] j = json;
+        if (j == null) {
+            j = toJson();
+            if (!JSON.compareAndSet(this, null, j)) j = json;
+        }
+        return j;
+    }
+
+    public void refreshJson() {
+        json = toJson();
+    }
+
+    private byte[] toJson() {
+        return ADAPTER.toJson(this).getBytes(StandardCharsets.UTF_8);
     }
 
     public static class VisitAdapter extends TypeAdapter<Visit> {
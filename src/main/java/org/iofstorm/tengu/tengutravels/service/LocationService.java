@@ -1,19 +1,23 @@
 package org.iofstorm.tengu.tengutravels.service;
 
+import org.iofstorm.tengu.tengutravels.loader.DataLoader;
+import org.iofstorm.tengu.tengutravels.loader.MutationLog;
 import org.iofstorm.tengu.tengutravels.model.Gender;
 import org.iofstorm.tengu.tengutravels.model.Location;
 import org.iofstorm.tengu.tengutravels.model.Mark;
-import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.store.AgeCutoffs;
+import org.iofstorm.tengu.tengutravels.store.IdStore;
+import org.iofstorm.tengu.tengutravels.store.LockStripes;
+import org.iofstorm.tengu.tengutravels.store.MarkAggregate;
+import org.iofstorm.tengu.tengutravels.store.SlotList;
+import org.iofstorm.tengu.tengutravels.store.StringDictionary;
+import org.iofstorm.tengu.tengutravels.store.VersionCounters;
+import org.iofstorm.tengu.tengutravels.store.VisitTable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.BAD_REQUEST;
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.NOT_FOUND;
@@ -21,78 +25,71 @@ import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.OK;
 
 @Service
 public class LocationService {
-    public static final Map<Integer, Location> locations = new HashMap<>(810_000, 1f);
-
-    private final ReadWriteLock lock;
+    // presized by DataLoader once the run mode is known
+    public static final IdStore<Location> locations = new IdStore<>(16_384);
+    // countries, cities and places of all locations
+    public static final StringDictionary strings = new StringDictionary();
+    // taken by every writer of a location and of its visit index and marks, after any user stripe
+    public static final LockStripes locks = new LockStripes(1024);
+    // bumped by every change the location's average marks depend on, see ResponseCache
+    public static final VersionCounters versions = new VersionCounters(1 << 18);
 
     @Autowired
     private VisitService visitService;
 
-    public LocationService() {
-        lock = new ReentrantReadWriteLock(true);
-    }
-
-    ReadWriteLock getLock() {
-        return lock;
-    }
+    @Autowired
+    private MutationLog mutationLog;
 
-    public Location getLocationWithoutLock(Integer id) {
+    public Location getLocationWithoutLock(int id) {
         return locations.get(id);
     }
 
     public int createLocation(Location location) {
-        lock.readLock().lock();
+        locks.lock(location.getId());
         try {
-            if (locations.containsKey(location.getId())) return BAD_REQUEST;
-            lock.readLock().unlock();
-            lock.writeLock().lock();
-            try {
-                if (locations.containsKey(location.getId())) {
-                    return BAD_REQUEST;
-                } else {
-                    locations.put(location.getId(), location);
-                    return OK;
-                }
-            } finally {
-                lock.readLock().lock();
-                lock.writeLock().unlock();
-            }
+            if (locations.contains(location.getId())) return BAD_REQUEST;
+            intern(location);
+            if (mutationLog != null) mutationLog.append(location);
+            locations.put(location.getId(), location);
+            return OK;
         } finally {
-            lock.readLock().unlock();
+            locks.unlock(location.getId());
         }
     }
 
-    public int updateLocation(Integer locationId, Location newLocation) {
-        lock.readLock().lock();
-        try {
-            if (!locations.containsKey(locationId)) {
-                return NOT_FOUND;
-            } else if (newLocation == null) {
-                return BAD_REQUEST;
-            } else {
-                lock.readLock().unlock();
-
-                lock.writeLock().lock();
-                visitService.getLock().writeLock().lock();
-                try {
-                    Location updated = remapLocation(locations.get(locationId), newLocation);
-                    locations.put(locationId, updated);
-                    return OK;
-                } finally {
-                    lock.readLock().lock();
-                    visitService.getLock().writeLock().unlock();
-                    lock.writeLock().unlock();
+    public int updateLocation(int locationId, Location newLocation) {
+        if (!locations.contains(locationId)) return NOT_FOUND;
+        if (newLocation == null) return BAD_REQUEST;
 
-                }
-            }
+        // a new country moves the location's visits in the country indexes of their users, which are written under the user stripes
+        int[] userStripes = null;
+        if (newLocation.getCountry() != null) userStripes = visitService.lockUsersOfLocation(locationId);
+        else locks.lock(locationId);
+        try {
+            Location updated = remapLocation(locations.get(locationId), newLocation);
+            visitService.onLocationUpdated(updated);
+            if (mutationLog != null) mutationLog.append(updated);
+            return OK;
         } finally {
-            lock.readLock().unlock();
+            locks.unlock(locationId);
+            if (userStripes != null) UserService.locks.unlockStripes(userStripes);
         }
     }
 
-    public Mark getAverageMark(Integer locationId, Long fromDate, Long toDate, Integer fromAge, Integer toAge, Gender gender) {
-        if (!locations.containsKey(locationId)) return null;
-        List<Visit> visitsByLocation = visitService.getVisitsByLocationId(locationId);
+    public Mark getAverageMark(int locationId, Long fromDate, Long toDate, Integer fromAge, Integer toAge, Gender gender) {
+        long sumAndCount = getMarkSumAndCount(locationId, fromDate, toDate, fromAge, toAge, gender);
+        if (sumAndCount < 0) return null;
+        int acc = MarkAggregate.sumOf(sumAndCount);
+        int i = MarkAggregate.countOf(sumAndCount);
+        BigDecimal avg;
+        if (acc == 0) avg = BigDecimal.ZERO;
+        else avg = BigDecimal.valueOf(acc).divide(BigDecimal.valueOf(i), 5, BigDecimal.ROUND_HALF_UP);
+        return new Mark(avg);
+    }
+
+    // sum and count of the matching marks packed as in MarkAggregate, -1 if there is no such location
+    public long getMarkSumAndCount(int locationId, Long fromDate, Long toDate, Integer fromAge, Integer toAge, Gender gender) {
+        if (!locations.contains(locationId)) return -1;
         int i = 0;
         int acc = 0;
         boolean fromDateIsPresent = fromDate != null;
@@ -100,32 +97,67 @@ public class LocationService {
         boolean genderIsPresent = gender != Gender.UNKNOWN;
         boolean fromAgeIsPresent = fromAge != null;
         boolean toAgeIsPresent = toAge != null;
-        for (Visit v : visitsByLocation) {
-            if (fromDateIsPresent && v.getVisitedAt() <= fromDate) continue;
-            if (toDateIsPresent && v.getVisitedAt() >= toDate) continue;
-            if (genderIsPresent && gender != v.getUserGender()) continue;
-            if (fromAgeIsPresent && v.getUserAge() < fromAge) continue;
-            if (toAgeIsPresent && v.getUserAge() >= toAge) continue;
-
-            acc += v.getMark();
-            i++;
+        if (!fromAgeIsPresent && !toAgeIsPresent) {
+            // date and gender filters are answered by the prefix sums
+            MarkAggregate marks = visitService.getMarksByLocationId(locationId);
+            if (marks == null) return 0;
+            return marks.sumAndCount(fromDateIsPresent ? fromDate : Long.MIN_VALUE, toDateIsPresent ? toDate : Long.MAX_VALUE, gender);
+        } else {
+            SlotList rows = visitService.getVisitsByLocationId(locationId);
+            VisitTable table = visitService.getTable();
+            long from = fromDateIsPresent ? fromDate : 0L;
+            long to = toDateIsPresent ? toDate : 0L;
+            // age filters turn into a birth date range: age >= fromAge and age < toAge
+            AgeCutoffs cutoffs = AgeCutoffs.at(DataLoader.NOW_TS);
+            long bornBefore = fromAgeIsPresent ? cutoffs.bornBefore(fromAge) : Long.MAX_VALUE;
+            long bornNotBefore = toAgeIsPresent ? cutoffs.bornBefore(toAge) : Long.MIN_VALUE;
+            // a visit moved by a concurrent remove could be counted twice, such a scan is done again
+            int version;
+            do {
+                version = rows.beginRead();
+                acc = 0;
+                i = 0;
+                for (int slot = 0, size = rows.size(); slot < size; slot++) {
+                    int row = rows.get(slot);
+                    long visitedAt = table.getVisitedAt(row);
+                    if (fromDateIsPresent && visitedAt <= from) continue;
+                    if (toDateIsPresent && visitedAt >= to) continue;
+                    if (genderIsPresent && gender != table.getUserGender(row)) continue;
+                    long birthDate = table.getUserBirthDate(row);
+                    if (birthDate >= bornBefore || birthDate < bornNotBefore) continue;
+
+                    acc += table.getMark(row);
+                    i++;
+                }
+            } while (!rows.validate(version));
         }
-        BigDecimal avg;
-        if (acc == 0) avg = BigDecimal.ZERO;
-        else avg = BigDecimal.valueOf(acc).divide(BigDecimal.valueOf(i), 5, BigDecimal.ROUND_HALF_UP);
-        return new Mark(avg);
+        return ((long) acc << 32) | (i & 0xFFFFFFFFL);
+    }
+
+    public void reserve(int expectedMaxId) {
+        locations.reserve(expectedMaxId);
     }
 
     // used for data loading
     public void load(List<Location> locationList) {
-        lock.writeLock().lock();
-        try {
-            for (Location location : locationList) {
-                locations.put(location.getId(), location);
-            }
-        } finally {
-            lock.writeLock().unlock();
+        for (Location location : locationList) {
+            intern(location);
+            locations.put(location.getId(), location);
+        }
+    }
+
+    // equal strings of all locations are held once, the country is also kept as its code for the visit filters
+    private static void intern(Location location) {
+        if (location.getPlace() != null) {
+            int place = strings.encode(location.getPlace());
+            location.setPlace(strings.decode(place), strings.json(place));
+        }
+        if (location.getCountry() != null) {
+            int country = strings.encode(location.getCountry());
+            location.setCountry(strings.decode(country));
+            location.setCountryCode(country);
         }
+        if (location.getCity() != null) location.setCity(strings.decode(strings.encode(location.getCity())));
     }
 
     private Location remapLocation(Location oldLoc, Location newLoc) {
@@ -133,6 +165,8 @@ public class LocationService {
         if (newLoc.getCity() != null) oldLoc.setCity(newLoc.getCity());
         if (newLoc.getCountry() != null) oldLoc.setCountry(newLoc.getCountry());
         if (newLoc.getDistance() != 0) oldLoc.setDistance(newLoc.getDistance());
+        intern(oldLoc);
+        oldLoc.refreshJson();
         return oldLoc;
     }
 }
@@ -1,16 +1,14 @@
 package org.iofstorm.tengu.tengutravels.service;
 
-import org.iofstorm.tengu.tengutravels.Utils;
+import org.iofstorm.tengu.tengutravels.loader.MutationLog;
 import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.store.IdStore;
+import org.iofstorm.tengu.tengutravels.store.LockStripes;
+import org.iofstorm.tengu.tengutravels.store.VersionCounters;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.BAD_REQUEST;
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.NOT_FOUND;
@@ -18,90 +16,69 @@ import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.OK;
 
 @Service
 public class UserService {
-    public static final Map<Integer, User> users = new HashMap<>(1_041_000, 1f);
-    private final ReadWriteLock lock;
-    private final Utils utils;
+    // presized by DataLoader once the run mode is known
+    public static final IdStore<User> users = new IdStore<>(16_384);
+    // taken by every writer of a user, before any location stripe
+    public static final LockStripes locks = new LockStripes(1024);
+    // bumped by every change the user's visits response shows, see ResponseCache
+    public static final VersionCounters versions = new VersionCounters(1 << 18);
 
     private VisitService visitService;
-
-    public UserService(Utils utils) {
-        lock = new ReentrantReadWriteLock(true);
-        this.utils = utils;
-    }
+    private MutationLog mutationLog;
 
     @Autowired
     public void setVisitService(VisitService visitService) {
         this.visitService = visitService;
     }
 
-    public ReadWriteLock getLock() {
-        return lock;
+    @Autowired
+    public void setMutationLog(MutationLog mutationLog) {
+        this.mutationLog = mutationLog;
     }
 
-    public User getUserWithoutLock(Integer id) {
+    public User getUserWithoutLock(int id) {
         return users.get(id);
     }
 
     public boolean userExist(Integer id) {
-        lock.readLock().lock();
-        try {
-            return users.containsKey(id);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return id != null && users.contains(id);
     }
 
     public int createUser(User user) {
-        lock.readLock().lock();
+        locks.lock(user.getId());
         try {
-            if (users.containsKey(user.getId())) return BAD_REQUEST;
-            lock.readLock().unlock();
-            lock.writeLock().lock();
-            try {
-                if (users.containsKey(user.getId())) {
-                    return BAD_REQUEST;
-                } else {
-                    users.put(user.getId(), user);
-                    return OK;
-                }
-            } finally {
-                lock.readLock().lock();
-                lock.writeLock().unlock();
-            }
+            if (users.contains(user.getId())) return BAD_REQUEST;
+            // logged before it is published, a visit of the user can not get into the log ahead of it
+            if (mutationLog != null) mutationLog.append(user);
+            users.put(user.getId(), user);
+            return OK;
         } finally {
-            lock.readLock().unlock();
+            locks.unlock(user.getId());
         }
     }
 
-    @SuppressWarnings("NumberEquality")
-    public int updateUser(Integer userId, User userUpdate) {
-        lock.readLock().lock();
+    public int updateUser(int userId, User userUpdate) {
+        if (!users.contains(userId)) return NOT_FOUND;
+        if (userUpdate == null) return BAD_REQUEST;
+
+        locks.lock(userId);
         try {
-            if (!users.containsKey(userId)) return NOT_FOUND;
-
-            lock.readLock().unlock();
-            lock.writeLock().lock();
-            visitService.getLock().writeLock().lock();
-            try {
-                if (!users.containsKey(userId)) return NOT_FOUND;
-                if (userUpdate == null) return BAD_REQUEST;
-
-                remapUser(users.get(userId), userUpdate);
-                return OK;
-            } finally {
-                visitService.getLock().writeLock().unlock();
-                lock.readLock().lock();
-                lock.writeLock().unlock();
-            }
+            User updated = remapUser(users.get(userId), userUpdate);
+            visitService.onUserUpdated(updated);
+            if (mutationLog != null) mutationLog.append(updated);
+            return OK;
         } finally {
-            lock.readLock().unlock();
+            locks.unlock(userId);
         }
     }
 
+    public void reserve(int expectedMaxId) {
+        users.reserve(expectedMaxId);
+    }
+
     // used for data loading
     public void load(List<User> userList) {
         for (User usr : userList) {
-            usr.setAge(utils.calcAge(usr.getBirthDate()));
             users.put(usr.getId(), usr);
         }
     }
@@ -110,11 +87,9 @@ public class UserService {
         if (newUser.getEmail() != null) oldUser.setEmail(newUser.getEmail());
         if (newUser.getFirstName() != null) oldUser.setFirstName(newUser.getFirstName());
         if (newUser.getLastName() != null) oldUser.setLastName(newUser.getLastName());
-        if (newUser.getBirthDate() != Long.MIN_VALUE) {
-            oldUser.setBirthDate(newUser.getBirthDate());
-            oldUser.setAge(newUser.getAge());
-        }
+        if (newUser.getBirthDate() != Long.MIN_VALUE) oldUser.setBirthDate(newUser.getBirthDate());
         if (newUser.getGender() != null) oldUser.setGender(newUser.getGender());
+        oldUser.refreshJson();
 
         return oldUser;
     }
@@ -1,22 +1,26 @@
 package org.iofstorm.tengu.tengutravels.service;
 
+import org.iofstorm.tengu.tengutravels.loader.MutationLog;
 import org.iofstorm.tengu.tengutravels.model.Location;
 import org.iofstorm.tengu.tengutravels.model.ShortVisit;
 import org.iofstorm.tengu.tengutravels.model.ShortVisits;
 import org.iofstorm.tengu.tengutravels.model.User;
 import org.iofstorm.tengu.tengutravels.model.Visit;
-import org.iofstorm.tengu.tengutravels.model.Visits;
+import org.iofstorm.tengu.tengutravels.store.IdStore;
+import org.iofstorm.tengu.tengutravels.store.LockStripes;
+import org.iofstorm.tengu.tengutravels.store.MarkAggregate;
+import org.iofstorm.tengu.tengutravels.store.RowList;
+import org.iofstorm.tengu.tengutravels.store.SlotList;
+import org.iofstorm.tengu.tengutravels.store.StringDictionary;
+import org.iofstorm.tengu.tengutravels.store.VisitTable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
 
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.BAD_REQUEST;
 import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.OK;
@@ -24,26 +28,30 @@ import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.OK;
 @Service
 public class VisitService {
     private static final ShortVisits EMPTY_SHORT_VISITS = new ShortVisits(Collections.emptyList());
-    private static final List<Visit> EMPTY_VISITS = Collections.emptyList();
-    private static final Comparator<ShortVisit> VISITED_AT_COMPARATOR = (o1, o2) -> (int)(o1.getVisitedAt() - o2.getVisitedAt());
+    private static final int COUNTRY_SCAN_MAX_ROWS = 32;
 
-    private final Map<Integer, Visit> visits;
-    private final Map<Integer, List<Visit>> visitsByUser;
-    private final Map<Integer, List<Visit>> visitsByLocation;
-    private final ReadWriteLock lock;
+    private final IdStore<Visit> visits;
+    private final VisitTable table;
+    private final IdStore<RowList> visitsByUser;
+    // the same rows ordered by location country first, so a country filter only reads the rows of its country
+    private final IdStore<RowList> visitsByUserCountry;
+    private final IdStore<SlotList> visitsByLocation;
+    private final IdStore<MarkAggregate> marksByLocation;
+    // taken by every writer of a visit, before the stripes of its user and location
+    private final LockStripes locks;
 
     private UserService userService;
     private LocationService locationService;
-
-    public ReadWriteLock getLock() {
-        return lock;
-    }
+    private MutationLog mutationLog;
 
     public VisitService() {
-        visits = new HashMap<>(10_041_000, 1f);
-        visitsByUser = new HashMap<>(1_041_000, 1f);
-        visitsByLocation = new HashMap<>(810_000, 1f);
-        lock = new ReentrantReadWriteLock(true);
+        visits = new IdStore<>(16_384);
+        table = new VisitTable(16_384);
+        visitsByUser = new IdStore<>(16_384);
+        visitsByUserCountry = new IdStore<>(16_384);
+        visitsByLocation = new IdStore<>(16_384);
+        marksByLocation = new IdStore<>(16_384);
+        locks = new LockStripes(1024);
     }
 
     @Autowired
@@ -56,113 +64,353 @@ public class VisitService {
         this.locationService = locationService;
     }
 
-    public boolean visitExist(Integer id) {
-        lock.readLock().lock();
-        try {
-            return visits.containsKey(id);
-        } finally {
-            lock.readLock().unlock();
-        }
+    @Autowired
+    public void setMutationLog(MutationLog mutationLog) {
+        this.mutationLog = mutationLog;
+    }
+
+    public boolean visitExist(int id) {
+        return visits.contains(id);
     }
 
-    public Visit getVisitWithoutLock(Integer id) {
+    public Visit getVisitWithoutLock(int id) {
         return visits.get(id);
     }
 
     public int createVisit(Visit visit) {
-        lock.readLock().lock();
+        int visitId = visit.getId();
+        locks.lock(visitId);
         try {
-            if (visits.containsKey(visit.getId())) return BAD_REQUEST; // visit already exist
-            lock.readLock().unlock();
-            lock.writeLock().lock();
+            if (visits.contains(visitId)) return BAD_REQUEST; // visit already exist
+
+            User user = userService.getUserWithoutLock(visit.getUserId());
+            Location location = locationService.getLocationWithoutLock(visit.getLocationId());
+            if (user == null || location == null) return BAD_REQUEST; // either user or location linked for this visit doesn't exist
+
+            UserService.locks.lock(user.getId());
+            LocationService.locks.lock(location.getId());
             try {
-                if (visits.containsKey(visit.getId())) return BAD_REQUEST; // visit already exist
-
-                User user = userService.getUserWithoutLock(visit.getUserId());
-                Location location = locationService.getLocationWithoutLock(visit.getLocationId());
-                if (user != null && location != null) {
-                    enrichVisit(visit, user, location);
-                    saveVisit(visit);
-                    return OK;
-                } else {
-                    return BAD_REQUEST; // either user or location linked for this visit doesn't exist
-                }
+                enrichVisit(visit, user, location);
+                int row = saveVisit(visit);
+                indexByUser(row);
+                indexByUserCountry(row);
+                indexByLocation(row);
+                aggregateMark(row);
+                UserService.versions.bump(user.getId());
+                LocationService.versions.bump(location.getId());
+                if (mutationLog != null) mutationLog.append(visit);
+                return OK;
             } finally {
-                lock.readLock().lock();
-                lock.writeLock().unlock();
+                LocationService.locks.unlock(location.getId());
+                UserService.locks.unlock(user.getId());
             }
         } finally {
-            lock.readLock().unlock();
+            locks.unlock(visitId);
         }
     }
 
-    public void updateVisit(Integer visitId, Visit newVisit) {
-        lock.writeLock().lock();
+    public void updateVisit(int visitId, Visit newVisit) {
+        locks.lock(visitId);
         try {
             Visit oldVisit = visits.get(visitId);
+            int row = oldVisit.getRow();
 
-            if (newVisit.user != null) visitsByUser.get(oldVisit.getUserId()).remove(oldVisit);
-            if (newVisit.location != null) visitsByLocation.get(oldVisit.getLocationId()).remove(oldVisit);
+            // user and location of the row are only changed under the visit's stripe, so they can't move away here
+            int oldUserId = table.getUserId(row);
+            int newUserId = newVisit.user != null ? newVisit.user.getId() : oldUserId;
+            int oldLocationId = table.getLocationId(row);
+            int newLocationId = newVisit.location != null ? newVisit.location.getId() : oldLocationId;
+            UserService.locks.lock(oldUserId, newUserId);
+            LocationService.locks.lock(oldLocationId, newLocationId);
+            try {
+                // user index is ordered by visited_at, so the row is re-inserted when either of them changes,
+                // the country one also when the location changes
+                boolean reindexUser = newVisit.user != null || newVisit.getVisitedAt() != Long.MIN_VALUE;
+                boolean reindexLocation = newVisit.location != null;
+                if (reindexUser) visitsByUser.get(oldUserId).removeByVisitedAt(row, table);
+                if (reindexUser || reindexLocation) visitsByUserCountry.get(oldUserId).removeByCountry(row, table);
+                if (reindexLocation) unindexByLocation(row);
+                markAggregate(oldLocationId).remove(table.getVisitedAt(row), table.getMark(row), table.getUserGender(row));
 
-            Visit updatedVisit = remapVisit(oldVisit, newVisit, newVisit.user, newVisit.location);
-            saveVisit(updatedVisit);
+                remapVisit(oldVisit, newVisit, newVisit.user, newVisit.location);
+                if (reindexUser) indexByUser(row);
+                if (reindexUser || reindexLocation) indexByUserCountry(row);
+                if (reindexLocation) indexByLocation(row);
+                aggregateMark(row);
+                UserService.versions.bump(oldUserId);
+                UserService.versions.bump(newUserId);
+                LocationService.versions.bump(oldLocationId);
+                LocationService.versions.bump(newLocationId);
+                if (mutationLog != null) mutationLog.append(oldVisit);
+            } finally {
+                LocationService.locks.unlock(oldLocationId, newLocationId);
+                UserService.locks.unlock(oldUserId, newUserId);
+            }
         } finally {
-            lock.writeLock().unlock();
+            locks.unlock(visitId);
         }
     }
 
-    public ShortVisits getUserVisits(Integer userId, Long fromDate, Long toDate, String country, Integer toDistance) {
-        if (UserService.users.get(userId) == null) return null; // user not found
-        List<Visit> userVisits = visitsByUser.get(userId);
-        if (userVisits == null) return EMPTY_SHORT_VISITS; // user has no visits, return empty visits list, ok response
-
+    public ShortVisits getUserVisits(int userId, Long fromDate, Long toDate, String country, Integer toDistance) {
         List<ShortVisit> result = new ArrayList<>();
+        boolean found = forEachUserVisit(userId, fromDate, toDate, country, toDistance,
+                (mark, visitedAt, location) -> result.add(new ShortVisit(mark, visitedAt, location.getPlace())));
+        if (!found) return null; // user not found
+        return result.isEmpty() ? EMPTY_SHORT_VISITS : new ShortVisits(result);
+    }
+
+    // feeds the matching visits ordered by visited_at to the consumer, false if there is no such user
+    public boolean forEachUserVisit(int userId, Long fromDate, Long toDate, String country, Integer toDistance, ShortVisitConsumer consumer) {
+        if (UserService.users.get(userId) == null) return false;
+        boolean fromDateIsPresent = fromDate != null;
+        boolean toDateIsPresent = toDate != null;
+        boolean countryIsPresent = country != null;
+        boolean toDistanceIsPresent = toDistance != null;
+        long from = fromDateIsPresent ? fromDate : 0L;
+        long to = toDateIsPresent ? toDate : 0L;
+        int distance = toDistanceIsPresent ? toDistance : 0;
+        int countryCode = countryIsPresent ? LocationService.strings.find(country) : StringDictionary.NOT_FOUND;
+        if (countryIsPresent && countryCode == StringDictionary.NOT_FOUND) return true; // no location has such country
 
-        for (Visit v : userVisits) {
-            if (fromDate != null && v.getVisitedAt() <= fromDate) continue;
-            if (toDate != null && v.getVisitedAt() >= toDate) continue;
-            if (country != null && !country.equals(v.getLocationCountry())) continue;
-            if (toDistance != null && v.getLocationDistance() >= toDistance) continue;
-            result.add(new ShortVisit(v.getMark(), v.getVisitedAt(), v.getLocationPlace()));
+        RowList userVisits = visitsByUser.get(userId);
+        if (userVisits == null) return true; // user has no visits, empty visits list, ok response
+        int[] rows = userVisits.rows();
+
+        // a few rows are scanned faster than the country index is searched
+        boolean byCountry = countryIsPresent && rows.length > COUNTRY_SCAN_MAX_ROWS;
+        int lo = 0;
+        int hi = rows.length;
+        if (byCountry) {
+            rows = visitsByUserCountry.get(userId).rows();
+            lo = RowList.firstOfCountry(rows, countryCode, table);
+            hi = RowList.firstAfterCountry(rows, countryCode, table);
         }
-        result.sort(VISITED_AT_COMPARATOR);
-        return new ShortVisits(result);
+        // rows are ordered by visited_at, within the country if there is one, date filters only narrow the range
+        if (fromDateIsPresent) lo = RowList.firstAfter(rows, lo, hi, from, table);
+        if (toDateIsPresent) hi = RowList.firstNotBefore(rows, lo, hi, to, table);
+
+        for (int i = lo; i < hi; i++) {
+            int row = rows[i];
+            if (countryIsPresent && !byCountry && table.getLocationCountry(row) != countryCode) continue;
+            if (toDistanceIsPresent && table.getLocationDistance(row) >= distance) continue;
+            consumer.accept(table.getMark(row), table.getVisitedAt(row), LocationService.locations.get(table.getLocationId(row)));
+        }
+        return true;
+    }
+
+    // sizes of the stores and indexes the loaded data is expected to fill
+    public void reserve(int expectedMaxUserId, int expectedMaxLocationId, int expectedVisits) {
+        visits.reserve(expectedVisits);
+        table.ensureCapacity(expectedVisits);
+        visitsByUser.reserve(expectedMaxUserId);
+        visitsByUserCountry.reserve(expectedMaxUserId);
+        visitsByLocation.reserve(expectedMaxLocationId);
+        marksByLocation.reserve(expectedMaxLocationId);
     }
 
-    // used for data loading
-    public void load(Visits visits) {
-        for (Visit visit : visits.getVisits()) {
+    // used for data loading, indexes and mark aggregates are built once by finishLoad(). Loaders run in parallel,
+    // they take turns here instead of taking the stripes per visit
+    public synchronized void load(List<Visit> visitList) {
+        table.ensureCapacity(table.size() + visitList.size());
+        for (Visit visit : visitList) {
             saveVisit(visit);
         }
     }
 
-    List<Visit> getVisitsByLocationId(Integer locationId) {
-        List<Visit> locationVisits = visitsByLocation.get(locationId);
-        if (locationVisits == null) return EMPTY_VISITS; // no visits for this location
+    // used for data loading, indexes all loaded rows at once, before any other visit is created or updated
+    public synchronized void finishLoad() {
+        forEachGroup(table::getUserId, (userId, rows) -> {
+            RowList.sortByVisitedAt(rows, table);
+            visitsByUser.put(userId, new RowList(rows));
+        });
+        // a pass of its own, so the rows scanned by most requests stay close together in the heap
+        visitsByUser.forEach((userId, userVisits) ->
+                visitsByUserCountry.put(userId, new RowList(RowList.sortByCountry(userVisits.rows(), table))));
+        forEachGroup(table::getLocationId, (locationId, rows) -> {
+            for (int slot = 0; slot < rows.length; slot++) table.setLocationSlot(rows[slot], slot);
+            visitsByLocation.put(locationId, new SlotList(rows));
+            marksByLocation.put(locationId, MarkAggregate.build(table, rows));
+        });
+    }
+
+    // groups all rows by the given column with one sort, rows of a group are in row order. Loaders run in parallel,
+    // so that order depends on their timing and is not relied on
+    private void forEachGroup(IntUnaryOperator column, IdStore.EntryConsumer<int[]> consumer) {
+        int size = table.size();
+        long[] keyAndRow = new long[size];
+        for (int row = 0; row < size; row++) {
+            keyAndRow[row] = ((long) column.applyAsInt(row) << 32) | row;
+        }
+        Arrays.parallelSort(keyAndRow);
+        for (int i = 0; i < size; ) {
+            int key = (int) (keyAndRow[i] >> 32);
+            int end = i + 1;
+            while (end < size && (int) (keyAndRow[end] >> 32) == key) end++;
+            int[] rows = new int[end - i];
+            for (int j = i; j < end; j++) rows[j - i] = (int) keyAndRow[j];
+            consumer.accept(key, rows);
+            i = end;
+        }
+    }
+
+    public IdStore<Visit> getVisits() {
+        return visits;
+    }
+
+    public LockStripes getLocks() {
+        return locks;
+    }
+
+    VisitTable getTable() {
+        return table;
+    }
+
+    SlotList getVisitsByLocationId(int locationId) {
+        SlotList locationVisits = visitsByLocation.get(locationId);
+        if (locationVisits == null) return SlotList.EMPTY; // no visits for this location
         return locationVisits;
     }
 
-    @SuppressWarnings("Java8MapApi")
-    private void saveVisit(Visit visit) {
+    MarkAggregate getMarksByLocationId(int locationId) {
+        return marksByLocation.get(locationId);
+    }
+
+    // refreshes user columns of the user's visits, caller holds the user's stripe
+    void onUserUpdated(User user) {
+        RowList userVisits = visitsByUser.get(user.getId());
+        if (userVisits == null || userVisits.size() == 0) return;
+        if (table.getUserGender(userVisits.get(0)) == user.getGender()) {
+            // all rows of a user share the gender column, no mark changes its partition, ages may still change averages
+            for (int i = 0; i < userVisits.size(); i++) {
+                int row = userVisits.get(i);
+                table.setUser(row, user);
+                LocationService.versions.bump(table.getLocationId(row));
+            }
+            return;
+        }
+
+        // marks move to the other gender partition of their locations, so those locations are locked as well
+        int[] locationIds = new int[userVisits.size()];
+        for (int i = 0; i < locationIds.length; i++) {
+            locationIds[i] = table.getLocationId(userVisits.get(i));
+        }
+        int[] stripes = LocationService.locks.lockAll(locationIds, locationIds.length);
+        try {
+            for (int i = 0; i < userVisits.size(); i++) {
+                int row = userVisits.get(i);
+                markAggregate(table.getLocationId(row)).remove(table.getVisitedAt(row), table.getMark(row), table.getUserGender(row));
+                table.setUser(row, user);
+                aggregateMark(row);
+                LocationService.versions.bump(table.getLocationId(row));
+            }
+        } finally {
+            LocationService.locks.unlockStripes(stripes);
+        }
+    }
+
+    // refreshes location columns of the location's visits, caller holds the location's stripe. Rows of a new country
+    // move within the country indexes of their users, so the caller holds their stripes then, see lockUsersOfLocation()
+    void onLocationUpdated(Location location) {
+        SlotList locVisits = visitsByLocation.get(location.getId());
+        if (locVisits == null) return;
+        for (int i = 0; i < locVisits.size(); i++) {
+            int row = locVisits.get(i);
+            if (table.getLocationCountry(row) == location.getCountryCode()) {
+                table.setLocation(row, location);
+            } else {
+                RowList userVisits = visitsByUserCountry.get(table.getUserId(row));
+                userVisits.removeByCountry(row, table);
+                table.setLocation(row, location);
+                userVisits.insertByCountry(row, table);
+            }
+            UserService.versions.bump(table.getUserId(row));
+        }
+    }
+
+    // locks the stripes of the users having visits of the location, then the location's stripe. Visits only come to
+    // or leave a location under its stripe, so once it is held the users are checked and the locking is retried
+    // if one of them was missed. The result goes to UserService.locks.unlockStripes() after the location's stripe
+    int[] lockUsersOfLocation(int locationId) {
+        while (true) {
+            SlotList locVisits = getVisitsByLocationId(locationId);
+            int[] userIds;
+            int version;
+            do {
+                version = locVisits.beginRead();
+                userIds = new int[locVisits.size()];
+                for (int i = 0; i < userIds.length; i++) userIds[i] = table.getUserId(locVisits.get(i));
+            } while (!locVisits.validate(version));
+            int[] stripes = UserService.locks.lockAll(userIds, userIds.length);
+            LocationService.locks.lock(locationId);
+            if (coversUsers(stripes, getVisitsByLocationId(locationId))) return stripes;
+            LocationService.locks.unlock(locationId);
+            UserService.locks.unlockStripes(stripes);
+        }
+    }
+
+    // the location's stripe is held, so the list does not change while it is read
+    private boolean coversUsers(int[] stripes, SlotList locVisits) {
+        for (int i = 0; i < locVisits.size(); i++) {
+            if (Arrays.binarySearch(stripes, UserService.locks.stripeOf(table.getUserId(locVisits.get(i)))) < 0) return false;
+        }
+        return true;
+    }
+
+    // returns the row of the visit, indexes are left to the caller
+    private int saveVisit(Visit visit) {
+        int row = table.append(visit.getId(), visit.getVisitedAt(), visit.getMark(), visit.user, visit.location);
+        visit.attach(table, row);
         visits.put(visit.getId(), visit);
+        return row;
+    }
 
-        List<Visit> userVisits = visitsByUser.get(visit.getUserId());
+    private void indexByUser(int row) {
+        int userId = table.getUserId(row);
+        RowList userVisits = visitsByUser.get(userId);
         if (userVisits == null) {
-            userVisits = new ArrayList<>();
-            visitsByUser.put(visit.getUserId(), userVisits);
-            userVisits.add(visit);
-        } else if (!userVisits.contains(visit)) {
-            userVisits.add(visit);
+            userVisits = new RowList();
+            visitsByUser.put(userId, userVisits);
         }
+        userVisits.insertByVisitedAt(row, table);
+    }
 
-        List<Visit> locVisits = visitsByLocation.get(visit.getLocationId());
+    private void indexByUserCountry(int row) {
+        int userId = table.getUserId(row);
+        RowList userVisits = visitsByUserCountry.get(userId);
+        if (userVisits == null) {
+            userVisits = new RowList();
+            visitsByUserCountry.put(userId, userVisits);
+        }
+        userVisits.insertByCountry(row, table);
+    }
+
+    private void indexByLocation(int row) {
+        int locationId = table.getLocationId(row);
+        SlotList locVisits = visitsByLocation.get(locationId);
         if (locVisits == null) {
-            locVisits = new ArrayList<>();
-            visitsByLocation.put(visit.getLocationId(), locVisits);
-            locVisits.add(visit);
-        } else if (!locVisits.contains(visit)) {
-            locVisits.add(visit);
+            locVisits = new SlotList();
+            visitsByLocation.put(locationId, locVisits);
         }
+        table.setLocationSlot(row, locVisits.append(row));
+    }
+
+    private void unindexByLocation(int row) {
+        int slot = table.getLocationSlot(row);
+        int moved = visitsByLocation.get(table.getLocationId(row)).removeAt(slot);
+        if (moved >= 0) table.setLocationSlot(moved, slot);
+    }
+
+    private void aggregateMark(int row) {
+        markAggregate(table.getLocationId(row)).add(table.getVisitedAt(row), table.getMark(row), table.getUserGender(row));
+    }
+
+    private MarkAggregate markAggregate(int locationId) {
+        MarkAggregate marks = marksByLocation.get(locationId);
+        if (marks == null) {
+            marks = new MarkAggregate();
+            marksByLocation.put(locationId, marks);
+        }
+        return marks;
     }
 
     private void enrichVisit(Visit vst, User usr, Location loc) {
@@ -181,7 +429,12 @@ public class VisitService {
         }
         if (newVisit.getVisitedAt() != Long.MIN_VALUE) oldVisit.setVisitedAt(newVisit.getVisitedAt());
         if (newVisit.getMark() != Integer.MIN_VALUE) oldVisit.setMark(newVisit.getMark());
+        oldVisit.refreshJson();
 
         return oldVisit;
     }
+
+    public interface ShortVisitConsumer {
+        void accept(int mark, long visitedAt, Location location);
+    }
 }
@@ -0,0 +1,47 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Birth date cutoffs of whole ages at the reference time, so age filters compare the birth_date column
+ * instead of calculating ages. Age is the number of full years between the birth date (UTC) and the
+ * reference date, as ChronoUnit.YEARS counts them: a user is at least n years old iff birth_date < bornBefore(n).
+ */
+public final class AgeCutoffs {
+    private static final int PRECOMPUTED_AGES = 256;
+    // way beyond any birth date, keeps LocalDate arithmetic in range for absurd filter values
+    private static final int MAX_AGE = 1_000_000;
+
+    private static volatile AgeCutoffs current;
+
+    private final LocalDateTime referenceTime;
+    private final long[] cutoffs = new long[PRECOMPUTED_AGES];
+
+    private AgeCutoffs(LocalDateTime referenceTime) {
+        this.referenceTime = referenceTime;
+        for (int age = 0; age < PRECOMPUTED_AGES; age++) cutoffs[age] = calculate(age);
+    }
+
+    // cutoffs of the given reference time, they are only recalculated when it changes
+    public static AgeCutoffs at(LocalDateTime referenceTime) {
+        AgeCutoffs c = current;
+        if (c == null || !c.referenceTime.equals(referenceTime)) {
+            c = new AgeCutoffs(referenceTime);
+            current = c;
+        }
+        return c;
+    }
+
+    // first second of the day after the latest birth date of users who are at least age years old
+    public long bornBefore(int age) {
+        if (age >= 0 && age < PRECOMPUTED_AGES) return cutoffs[age];
+        return calculate(Math.max(-MAX_AGE, Math.min(MAX_AGE, age)));
+    }
+
+    private long calculate(int age) {
+        LocalDate latestBirthDate = referenceTime.toLocalDate().minusYears(age);
+        return latestBirthDate.plusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,82 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Entity storage indexed by int id. Ids from the compact range [0, MAX_DENSE_ID) live in an
+ * array slot, anything else falls back to {@link IntObjectMap}. Lookups never box or allocate.
+ * Writes are serialized by the store itself, reads never lock and may run concurrently with them.
+ * Dense slots are written with release and read with acquire semantics, so an entity is fully visible
+ * to any reader which finds it by id.
+ */
+public class IdStore<T> {
+    // 64M references, 256 Mb with compressed oops, way above any highloadcup dataset
+    static final int MAX_DENSE_ID = 1 << 26;
+    private static final int SPARSE_INITIAL_SIZE = 1024;
+
+    private volatile AtomicReferenceArray<T> dense;
+    private final IntObjectMap<T> sparse;
+    private int size;
+
+    public IdStore(int expectedMaxId) {
+        dense = new AtomicReferenceArray<>(Math.min(Math.max(expectedMaxId, 16) + 1, MAX_DENSE_ID));
+        sparse = new IntObjectMap<>(SPARSE_INITIAL_SIZE);
+    }
+
+    // grows the dense slots at once before a bulk insert
+    public synchronized void reserve(int expectedMaxId) {
+        int capacity = Math.min(Math.max(expectedMaxId, 16) + 1, MAX_DENSE_ID);
+        AtomicReferenceArray<T> d = dense;
+        if (capacity > d.length()) dense = grow(d, capacity);
+    }
+
+    public T get(int id) {
+        AtomicReferenceArray<T> d = dense;
+        if (id >= 0 && id < d.length()) return d.get(id);
+        return id >= 0 && id < MAX_DENSE_ID ? null : sparse.get(id);
+    }
+
+    public boolean contains(int id) {
+        return get(id) != null;
+    }
+
+    public synchronized T put(int id, T value) {
+        T prev;
+        if (id >= 0 && id < MAX_DENSE_ID) {
+            AtomicReferenceArray<T> d = dense;
+            if (id >= d.length()) {
+                d = grow(d, (int) Math.min(MAX_DENSE_ID, Math.max(id + 1L, d.length() * 2L)));
+                dense = d;
+            }
+            prev = d.getAndSet(id, value);
+        } else {
+            prev = sparse.put(id, value);
+        }
+        if (prev == null) size++;
+        return prev;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer<T> consumer) {
+        AtomicReferenceArray<T> d = dense;
+        for (int id = 0; id < d.length(); id++) {
+            T value = d.get(id);
+            if (value != null) consumer.accept(id, value);
+        }
+        sparse.forEach(consumer);
+    }
+
+    // puts are serialized, so no slot changes while it is copied
+    private static <T> AtomicReferenceArray<T> grow(AtomicReferenceArray<T> d, int capacity) {
+        AtomicReferenceArray<T> larger = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < d.length(); i++) larger.lazySet(i, d.get(i));
+        return larger;
+    }
+
+    public interface EntryConsumer<T> {
+        void accept(int id, T value);
+    }
+}
@@ -0,0 +1,119 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing int -> object map with linear probing. No boxing of keys, no per entry nodes.
+ * Entries are never removed, entities live until shutdown.
+ * Writes must be serialized by the caller, reads may run concurrently with them: a new slot gets its value
+ * before its key is stored with volatile semantics, so a reader which finds the key also sees the value.
+ */
+public class IntObjectMap<T> {
+    private static final int FREE_KEY = 0;
+    private static final float FILL_FACTOR = 0.5f;
+
+    // keys and values are swapped together on rehash, the volatile write publishes the filled table,
+    // readers still on the old one see the entries it had
+    private volatile Table table;
+    private int size;
+
+    // key 0 is used as the free slot marker, so its value is kept aside
+    private volatile Object freeKeyValue;
+
+    public IntObjectMap(int expectedSize) {
+        table = new Table(tableSizeFor((int) Math.min(1 << 30, Math.max(4L, (long) (expectedSize / FILL_FACTOR)))));
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int key) {
+        if (key == FREE_KEY) return (T) freeKeyValue;
+        Table t = table;
+        AtomicIntegerArray keys = t.keys;
+        int mask = t.mask;
+        int i = mix(key) & mask;
+        int k;
+        while ((k = keys.get(i)) != FREE_KEY) {
+            if (k == key) return (T) t.values.get(i);
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T put(int key, T value) {
+        if (key == FREE_KEY) {
+            Object prev = freeKeyValue;
+            if (prev == null) size++;
+            freeKeyValue = value;
+            return (T) prev;
+        }
+        Table t = table;
+        int i = mix(key) & t.mask;
+        int k;
+        while ((k = t.keys.get(i)) != FREE_KEY) {
+            if (k == key) return (T) t.values.getAndSet(i, value);
+            i = (i + 1) & t.mask;
+        }
+        t.values.lazySet(i, value);
+        t.keys.set(i, key);
+        if (++size >= t.threshold) table = t.rehash(t.keys.length() * 2);
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(IdStore.EntryConsumer<T> consumer) {
+        Object free = freeKeyValue;
+        if (free != null) consumer.accept(FREE_KEY, (T) free);
+        Table t = table;
+        for (int i = 0; i < t.keys.length(); i++) {
+            int key = t.keys.get(i);
+            if (key != FREE_KEY) consumer.accept(key, (T) t.values.get(i));
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int n) {
+        int c = Integer.highestOneBit(n);
+        return c < n ? c << 1 : c;
+    }
+
+    private static final class Table {
+        final AtomicIntegerArray keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+        final int threshold;
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+            threshold = (int) (capacity * FILL_FACTOR);
+        }
+
+        Table rehash(int newCapacity) {
+            Table t = new Table(newCapacity);
+            for (int j = 0; j < keys.length(); j++) {
+                int key = keys.get(j);
+                if (key == FREE_KEY) continue;
+                int i = mix(key) & t.mask;
+                while (t.keys.get(i) != FREE_KEY) i = (i + 1) & t.mask;
+                t.keys.lazySet(i, key);
+                t.values.lazySet(i, values.get(j));
+            }
+            return t;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.iofstorm.tengu.tengutravels.metrics.LatencyHistogram;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks entity ids are hashed to. Writers of the same entity contend on one lock,
+ * writers of different entities only do so on a hash collision. Readers take no locks at all.
+ * Whenever several stripes of one set are held they are taken in ascending stripe order,
+ * so concurrent writers can't deadlock on them. Time spent waiting for a stripe held by another
+ * writer is recorded, uncontended locking only costs a tryLock().
+ */
+public class LockStripes {
+    private final ReentrantLock[] locks;
+    private final int mask;
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    public LockStripes(int stripes) {
+        int n = Integer.highestOneBit(Math.max(stripes, 1));
+        if (n < stripes) n <<= 1;
+        locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) locks[i] = new ReentrantLock();
+        mask = n - 1;
+    }
+
+    public LatencyHistogram getWaits() {
+        return waits;
+    }
+
+    public int stripeOf(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public void lock(int id) {
+        lock(locks[stripeOf(id)]);
+    }
+
+    public void unlock(int id) {
+        locks[stripeOf(id)].unlock();
+    }
+
+    // both ids may share a stripe, it is locked once then
+    public void lock(int id1, int id2) {
+        int s1 = stripeOf(id1);
+        int s2 = stripeOf(id2);
+        lock(locks[Math.min(s1, s2)]);
+        if (s1 != s2) lock(locks[Math.max(s1, s2)]);
+    }
+
+    public void unlock(int id1, int id2) {
+        int s1 = stripeOf(id1);
+        int s2 = stripeOf(id2);
+        if (s1 != s2) locks[Math.max(s1, s2)].unlock();
+        locks[Math.min(s1, s2)].unlock();
+    }
+
+    // locks the stripes of the first n ids, the result goes to unlockStripes()
+    public int[] lockAll(int[] ids, int n) {
+        int[] stripes = new int[n];
+        for (int i = 0; i < n; i++) stripes[i] = stripeOf(ids[i]);
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || stripes[distinct - 1] != stripes[i]) stripes[distinct++] = stripes[i];
+        }
+        stripes = Arrays.copyOf(stripes, distinct);
+        for (int s : stripes) lock(locks[s]);
+        return stripes;
+    }
+
+    public void unlockStripes(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) locks[stripes[i]].unlock();
+    }
+
+    private void lock(ReentrantLock lock) {
+        if (lock.tryLock()) return;
+        long startTs = System.nanoTime();
+        lock.lock();
+        waits.record(System.nanoTime() - startTs);
+    }
+}
@@ -0,0 +1,333 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+
+import java.util.Arrays;
+
+/**
+ * Marks of one location partitioned by user gender. Each partition keeps visited_at ordered ascending in blocks
+ * of about the square root of its size, every block with prefix sums of its marks and the partition with prefix
+ * sums over the blocks, so sum and count over a date range cost a few binary searches.
+ * A write copies one block and the block index, O(sqrt(n)) instead of the whole partition.
+ * Partitions are immutable and replaced on every change, readers never see a half updated one.
+ * Writes must be serialized by the caller.
+ */
+public class MarkAggregate {
+    private static final Gender[] GENDERS = Gender.values();
+    private static final int MIN_BLOCK_SIZE = 32;
+    private static final long[] NOTHING_BEFORE = new long[1];
+    private static final Block EMPTY_BLOCK = new Block(new long[0], new int[1]);
+    private static final Partition EMPTY = new Partition(new Block[0]);
+
+    private volatile Partition[] partitions;
+
+    public MarkAggregate() {
+        Partition[] p = new Partition[GENDERS.length];
+        Arrays.fill(p, EMPTY);
+        partitions = p;
+    }
+
+    public void add(long visitedAt, int mark, Gender gender) {
+        Partition[] p = partitions.clone();
+        p[gender.ordinal()] = p[gender.ordinal()].add(visitedAt, mark);
+        partitions = p;
+    }
+
+    public void remove(long visitedAt, int mark, Gender gender) {
+        Partition[] p = partitions.clone();
+        p[gender.ordinal()] = p[gender.ordinal()].remove(visitedAt, mark);
+        partitions = p;
+    }
+
+    /**
+     * Sum and count of marks with from < visited_at < to, Long.MIN_VALUE and Long.MAX_VALUE stand for an absent bound.
+     * Gender.UNKNOWN means any gender. Result is packed, see {@link #sumOf(long)} and {@link #countOf(long)}.
+     */
+    public long sumAndCount(long from, long to, Gender gender) {
+        Partition[] p = partitions;
+        int sum = 0;
+        int count = 0;
+        for (int g = 0; g < p.length; g++) {
+            if (gender != Gender.UNKNOWN && gender.ordinal() != g) continue;
+            Partition part = p[g];
+            long lo = part.notAfter(from);
+            long hi = part.before(to);
+            if (countOf(lo) >= countOf(hi)) continue;
+            sum += sumOf(hi) - sumOf(lo);
+            count += countOf(hi) - countOf(lo);
+        }
+        return pack(sum, count);
+    }
+
+    public static int sumOf(long sumAndCount) {
+        return (int) (sumAndCount >>> 32);
+    }
+
+    public static int countOf(long sumAndCount) {
+        return (int) sumAndCount;
+    }
+
+    private static long pack(int sum, int count) {
+        return ((long) sum << 32) | (count & 0xFFFFFFFFL);
+    }
+
+    // a block is split once it holds twice as many marks
+    private static int blockSize(int n) {
+        return Math.max(MIN_BLOCK_SIZE, (int) Math.sqrt(n));
+    }
+
+    // builds the aggregate of the given rows at once, used after bulk loading
+    public static MarkAggregate build(VisitTable table, int[] rows) {
+        long[][] packed = new long[GENDERS.length][];
+        int[] sizes = new int[GENDERS.length];
+        for (int g = 0; g < GENDERS.length; g++) packed[g] = new long[rows.length];
+        for (int row : rows) {
+            int g = table.getUserGender(row).ordinal();
+            // mark takes 3 lowest bits, ordering by the packed value is ordering by visited_at
+            packed[g][sizes[g]++] = (table.getVisitedAt(row) << 3) | table.getMark(row);
+        }
+
+        Partition[] p = new Partition[GENDERS.length];
+        for (int g = 0; g < GENDERS.length; g++) {
+            Arrays.sort(packed[g], 0, sizes[g]);
+            p[g] = Partition.of(packed[g], sizes[g]);
+        }
+
+        MarkAggregate aggregate = new MarkAggregate();
+        aggregate.partitions = p;
+        return aggregate;
+    }
+
+    private static final class Partition {
+        // non empty blocks, the last visited_at of a block is not after the first one of the next block
+        final Block[] blocks;
+        // before[b] is the packed sum and count of the blocks before b
+        final long[] before;
+        final int size;
+
+        Partition(Block[] blocks) {
+            this.blocks = blocks;
+            if (blocks.length <= 1) {
+                before = NOTHING_BEFORE;
+                size = blocks.length == 0 ? 0 : blocks[0].size();
+                return;
+            }
+            before = new long[blocks.length];
+            int sum = 0;
+            int count = 0;
+            for (int b = 1; b < blocks.length; b++) {
+                sum += blocks[b - 1].sum();
+                count += blocks[b - 1].size();
+                before[b] = pack(sum, count);
+            }
+            size = count + blocks[blocks.length - 1].size();
+        }
+
+        // splits n packed (visited_at << 3 | mark) values in ascending order into blocks
+        static Partition of(long[] keys, int n) {
+            if (n == 0) return EMPTY;
+            int blockSize = blockSize(n);
+            Block[] blocks = new Block[(n + blockSize - 1) / blockSize];
+            for (int b = 0; b < blocks.length; b++) {
+                int lo = b * blockSize;
+                int hi = Math.min(n, lo + blockSize);
+                long[] visitedAt = new long[hi - lo];
+                int[] prefix = new int[hi - lo + 1];
+                for (int i = lo; i < hi; i++) {
+                    visitedAt[i - lo] = keys[i] >> 3;
+                    prefix[i - lo + 1] = prefix[i - lo] + (int) (keys[i] & 7);
+                }
+                blocks[b] = new Block(visitedAt, prefix);
+            }
+            return new Partition(blocks);
+        }
+
+        Partition add(long ts, int mark) {
+            if (blocks.length == 0) return new Partition(new Block[]{EMPTY_BLOCK.add(ts, mark)});
+            // the last block starting not after ts, or the first one
+            int b = Math.max(0, firstBlockAfter(ts) - 1);
+            Block grown = blocks[b].add(ts, mark);
+            if (grown.size() <= 2 * blockSize(size + 1)) {
+                Block[] next = blocks.clone();
+                next[b] = grown;
+                return new Partition(next);
+            }
+            Block[] next = new Block[blocks.length + 1];
+            System.arraycopy(blocks, 0, next, 0, b);
+            int half = grown.size() / 2;
+            next[b] = grown.slice(0, half);
+            next[b + 1] = grown.slice(half, grown.size());
+            System.arraycopy(blocks, b + 1, next, b + 2, blocks.length - b - 1);
+            return new Partition(next);
+        }
+
+        Partition remove(long ts, int mark) {
+            // the block before the first one starting at ts may end with it, equal visited_at may span several blocks
+            for (int b = Math.max(0, firstBlockNotBefore(ts) - 1); b < blocks.length && blocks[b].first() <= ts; b++) {
+                Block shrunk = blocks[b].remove(ts, mark);
+                if (shrunk == blocks[b]) continue;
+                if (size == 1) return EMPTY;
+                Block[] next;
+                if (shrunk.size() > 0) {
+                    next = blocks.clone();
+                    next[b] = shrunk;
+                } else {
+                    next = new Block[blocks.length - 1];
+                    System.arraycopy(blocks, 0, next, 0, b);
+                    System.arraycopy(blocks, b + 1, next, b, next.length - b);
+                }
+                Partition removed = new Partition(next);
+                // blocks thinned out by removals are laid out again, that takes many removals, so the cost is amortized
+                int n = size - 1;
+                int blockSize = blockSize(n);
+                return next.length > 2 * ((n + blockSize - 1) / blockSize) + 1 ? removed.rebuild() : removed;
+            }
+            return this;
+        }
+
+        private Partition rebuild() {
+            long[] keys = new long[size];
+            int n = 0;
+            for (Block block : blocks) {
+                for (int i = 0; i < block.size(); i++) keys[n++] = (block.visitedAt[i] << 3) | block.markAt(i);
+            }
+            return of(keys, n);
+        }
+
+        // packed sum and count of marks with visited_at <= ts
+        long notAfter(long ts) {
+            int b = firstBlockAfter(ts) - 1;
+            if (b < 0) return 0;
+            Block block = blocks[b];
+            int i = block.firstAfter(ts);
+            return before[b] + pack(block.prefix[i], i);
+        }
+
+        // packed sum and count of marks with visited_at < ts
+        long before(long ts) {
+            int b = firstBlockNotBefore(ts) - 1;
+            if (b < 0) return 0;
+            Block block = blocks[b];
+            int i = block.firstNotBefore(ts);
+            return before[b] + pack(block.prefix[i], i);
+        }
+
+        // index of the first block starting after ts, blocks.length if there is no such block
+        private int firstBlockAfter(long ts) {
+            int lo = 0;
+            int hi = blocks.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (blocks[mid].first() <= ts) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        // index of the first block starting not before ts, blocks.length if there is no such block
+        private int firstBlockNotBefore(long ts) {
+            int lo = 0;
+            int hi = blocks.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (blocks[mid].first() < ts) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private static final class Block {
+        final long[] visitedAt;
+        // prefix[i] is the sum of the first i marks, prefix.length == visitedAt.length + 1
+        final int[] prefix;
+
+        Block(long[] visitedAt, int[] prefix) {
+            this.visitedAt = visitedAt;
+            this.prefix = prefix;
+        }
+
+        int size() {
+            return visitedAt.length;
+        }
+
+        int sum() {
+            return prefix[visitedAt.length];
+        }
+
+        long first() {
+            return visitedAt[0];
+        }
+
+        int markAt(int i) {
+            return prefix[i + 1] - prefix[i];
+        }
+
+        Block slice(int from, int to) {
+            long[] va = Arrays.copyOfRange(visitedAt, from, to);
+            int[] pr = new int[to - from + 1];
+            for (int i = from; i < to; i++) pr[i - from + 1] = pr[i - from] + markAt(i);
+            return new Block(va, pr);
+        }
+
+        Block add(long ts, int mark) {
+            int n = visitedAt.length;
+            int pos = firstAfter(ts);
+            long[] va = new long[n + 1];
+            int[] pr = new int[n + 2];
+            System.arraycopy(visitedAt, 0, va, 0, pos);
+            System.arraycopy(prefix, 0, pr, 0, pos + 1);
+            va[pos] = ts;
+            pr[pos + 1] = pr[pos] + mark;
+            for (int i = pos; i < n; i++) {
+                va[i + 1] = visitedAt[i];
+                pr[i + 2] = pr[i + 1] + markAt(i);
+            }
+            return new Block(va, pr);
+        }
+
+        Block remove(long ts, int mark) {
+            int pos = -1;
+            for (int i = firstNotBefore(ts); i < visitedAt.length && visitedAt[i] == ts; i++) {
+                if (markAt(i) == mark) {
+                    pos = i;
+                    break;
+                }
+            }
+            if (pos < 0) return this;
+            int n = visitedAt.length;
+            if (n == 1) return EMPTY_BLOCK;
+            long[] va = new long[n - 1];
+            int[] pr = new int[n];
+            System.arraycopy(visitedAt, 0, va, 0, pos);
+            System.arraycopy(prefix, 0, pr, 0, pos + 1);
+            for (int i = pos + 1; i < n; i++) {
+                va[i - 1] = visitedAt[i];
+                pr[i] = pr[i - 1] + markAt(i);
+            }
+            return new Block(va, pr);
+        }
+
+        int firstAfter(long ts) {
+            int lo = 0;
+            int hi = visitedAt.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (visitedAt[mid] <= ts) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        int firstNotBefore(long ts) {
+            int lo = 0;
+            int hi = visitedAt.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (visitedAt[mid] < ts) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+}
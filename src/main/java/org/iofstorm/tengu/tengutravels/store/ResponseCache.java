@@ -0,0 +1,127 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serialized responses keyed by an entity id and the filters of the request, each one valid for the version
+ * of the entity it was built at, see {@link VersionCounters}. Keys hash to one slot each, a new key takes the slot
+ * over. Sizes of the bodies are accounted and once they are over the budget a clock hand frees slots in turn.
+ * Lookups take no locks and allocate nothing.
+ */
+public class ResponseCache {
+    // entry object, key fields and array header
+    private static final int ENTRY_OVERHEAD = 80;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger hand = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // 0 max bytes disables the cache
+    public ResponseCache(int slots, long maxBytes, int maxEntryBytes) {
+        int n = Integer.highestOneBit(Math.max(slots, 1));
+        if (n < slots) n <<= 1;
+        this.slots = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+    }
+
+    // body cached for the key at the given version, null if there is none
+    public byte[] get(int id, int filters, long a, long b, long c, long d, long version) {
+        Entry e = slots.get(slotOf(id, filters, a, b, c, d));
+        if (e != null && e.version == version && e.matches(id, filters, a, b, c, d)) {
+            hits.increment();
+            return e.body;
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(int id, int filters, long a, long b, long c, long d, long version, byte[] body) {
+        if (body.length + ENTRY_OVERHEAD > maxEntryBytes) return;
+        Entry e = new Entry(id, filters, a, b, c, d, version, body);
+        Entry old = slots.getAndSet(slotOf(id, filters, a, b, c, d), e);
+        long total = bytes.addAndGet(e.size() - (old == null ? 0 : old.size()));
+        if (old != null && !old.matches(id, filters, a, b, c, d)) evictions.increment();
+        while (total > maxBytes) {
+            Entry victim = slots.getAndSet(hand.getAndIncrement() & mask, null);
+            if (victim != null) {
+                total = bytes.addAndGet(-victim.size());
+                evictions.increment();
+            } else {
+                total = bytes.get();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    private int slotOf(int id, int filters, long a, long b, long c, long d) {
+        long h = id * 0x9E3779B97F4A7C15L + filters;
+        h = (h ^ a) * 0x9E3779B97F4A7C15L;
+        h = (h ^ b) * 0x9E3779B97F4A7C15L;
+        h = (h ^ c) * 0x9E3779B97F4A7C15L;
+        h = (h ^ d) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static final class Entry {
+        final int id;
+        final int filters;
+        final long a;
+        final long b;
+        final long c;
+        final long d;
+        final long version;
+        final byte[] body;
+
+        Entry(int id, int filters, long a, long b, long c, long d, long version, byte[] body) {
+            this.id = id;
+            this.filters = filters;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+            this.version = version;
+            this.body = body;
+        }
+
+        boolean matches(int id, int filters, long a, long b, long c, long d) {
+            return this.id == id && this.filters == filters && this.a == a && this.b == b && this.c == c && this.d == d;
+        }
+
+        long size() {
+            return body.length + ENTRY_OVERHEAD;
+        }
+    }
+}
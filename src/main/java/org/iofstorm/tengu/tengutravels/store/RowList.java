@@ -0,0 +1,200 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import java.util.Arrays;
+
+/**
+ * Ordered list of {@link VisitTable} rows, used for the per user visit indexes. The lists are kept ordered
+ * by visited_at, see {@link #insertByVisitedAt(int, VisitTable)}, or by location country and then visited_at,
+ * see {@link #insertByCountry(int, VisitTable)}, so range queries are binary searches. Equal visited_at are
+ * ordered by visit id, so the order does not depend on how the rows were loaded or inserted.
+ * Rows are kept in an immutable array which is replaced on every change, so readers take {@link #rows()}
+ * once and scan it without locks, never seeing a half shifted array. The place of a row is found by a binary
+ * search, but insert and remove still copy the whole array, O(n) per change. Per location rows are unordered
+ * and live in a {@link SlotList} instead. Writes must be serialized by the caller.
+ */
+public class RowList {
+    private static final int[] NO_ROWS = new int[0];
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    public static final RowList EMPTY = new RowList();
+
+    private volatile int[] rows;
+
+    public RowList() {
+        this(NO_ROWS);
+    }
+
+    // the list takes over the given array
+    public RowList(int[] rows) {
+        this.rows = rows;
+    }
+
+    // current rows, never changed after they were published
+    public int[] rows() {
+        return rows;
+    }
+
+    public int size() {
+        return rows.length;
+    }
+
+    public int get(int i) {
+        return rows[i];
+    }
+
+    // keeps the list ordered by visited_at and then by visit id
+    public void insertByVisitedAt(int row, VisitTable table) {
+        int[] r = rows;
+        insert(positionOf(r, 0, r.length, row, table), row);
+    }
+
+    // the row is looked up by its visited_at, so it has to be removed before visited_at changes
+    public boolean removeByVisitedAt(int row, VisitTable table) {
+        int[] r = rows;
+        return delete(positionOf(r, 0, r.length, row, table), row);
+    }
+
+    // keeps the list ordered by location country, then by visited_at and then by visit id
+    public void insertByCountry(int row, VisitTable table) {
+        int[] r = rows;
+        int country = table.getLocationCountry(row);
+        insert(positionOf(r, firstOfCountry(r, country, table), firstAfterCountry(r, country, table), row, table), row);
+    }
+
+    // the row is looked up by its country and visited_at, so it has to be removed before either changes
+    public boolean removeByCountry(int row, VisitTable table) {
+        int[] r = rows;
+        int country = table.getLocationCountry(row);
+        return delete(positionOf(r, firstOfCountry(r, country, table), firstAfterCountry(r, country, table), row, table), row);
+    }
+
+    private void insert(int i, int row) {
+        int[] r = rows;
+        int[] next = new int[r.length + 1];
+        System.arraycopy(r, 0, next, 0, i);
+        next[i] = row;
+        System.arraycopy(r, i, next, i + 1, r.length - i);
+        rows = next;
+    }
+
+    // index of the first row within rows[lo, hi) which is not ordered before the given row, hi if there is no such row
+    private static int positionOf(int[] rows, int lo, int hi, int row, VisitTable table) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(rows[mid], row, table) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // orders rows by visited_at and then by visit id
+    private static int compare(int a, int b, VisitTable table) {
+        int c = Long.compare(table.getVisitedAt(a), table.getVisitedAt(b));
+        return c != 0 ? c : Integer.compare(table.getVisitId(a), table.getVisitId(b));
+    }
+
+    // false if the row is not at the index
+    private boolean delete(int i, int row) {
+        int[] r = rows;
+        if (i == r.length || r[i] != row) return false;
+        int[] next = new int[r.length - 1];
+        System.arraycopy(r, 0, next, 0, i);
+        System.arraycopy(r, i + 1, next, i, r.length - i - 1);
+        rows = next;
+        return true;
+    }
+
+    // index of the first row with visited_at > given value, rows.length if there is no such row
+    public static int firstAfter(int[] rows, long visitedAt, VisitTable table) {
+        return firstAfter(rows, 0, rows.length, visitedAt, table);
+    }
+
+    // the same within rows[lo, hi) ordered by visited_at, hi if there is no such row
+    public static int firstAfter(int[] rows, int lo, int hi, long visitedAt, VisitTable table) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table.getVisitedAt(rows[mid]) <= visitedAt) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // index of the first row with visited_at >= given value, rows.length if there is no such row
+    public static int firstNotBefore(int[] rows, long visitedAt, VisitTable table) {
+        return firstNotBefore(rows, 0, rows.length, visitedAt, table);
+    }
+
+    // the same within rows[lo, hi) ordered by visited_at, hi if there is no such row
+    public static int firstNotBefore(int[] rows, int lo, int hi, long visitedAt, VisitTable table) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table.getVisitedAt(rows[mid]) < visitedAt) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // index of the first row of the country or of a greater one, in rows ordered by country
+    public static int firstOfCountry(int[] rows, int country, VisitTable table) {
+        int lo = 0;
+        int hi = rows.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table.getLocationCountry(rows[mid]) < country) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // index of the first row of a greater country, in rows ordered by country
+    public static int firstAfterCountry(int[] rows, int country, VisitTable table) {
+        int lo = 0;
+        int hi = rows.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table.getLocationCountry(rows[mid]) <= country) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // rows ordered by visited_at and visit id come out ordered by country and then by visited_at and visit id
+    public static int[] sortByCountry(int[] rows, VisitTable table) {
+        long[] keys = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) keys[i] = ((long) table.getLocationCountry(rows[i]) << 32) | i;
+        Arrays.sort(keys);
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) sorted[i] = rows[(int) keys[i]];
+        return sorted;
+    }
+
+    // sorts by visited_at and then by visit id
+    public static void sortByVisitedAt(int[] rows, VisitTable table) {
+        if (rows.length < 2) return;
+        mergeSort(rows, rows.clone(), 0, rows.length, table);
+    }
+
+    // sorts src[lo, hi) into dst[lo, hi), both hold the same rows on entry
+    private static void mergeSort(int[] dst, int[] src, int lo, int hi, VisitTable table) {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            for (int i = lo + 1; i < hi; i++) {
+                int row = dst[i];
+                int j = i - 1;
+                while (j >= lo && compare(dst[j], row, table) > 0) {
+                    dst[j + 1] = dst[j];
+                    j--;
+                }
+                dst[j + 1] = row;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(src, dst, lo, mid, table);
+        mergeSort(src, dst, mid, hi, table);
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi || (i < mid && compare(src[i], src[j], table) <= 0)) dst[k] = src[i++];
+            else dst[k] = src[j++];
+        }
+    }
+}
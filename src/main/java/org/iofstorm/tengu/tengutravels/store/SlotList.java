@@ -0,0 +1,82 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Unordered list of {@link VisitTable} rows, used for the per location visit index. Every row keeps its slot,
+ * see {@link VisitTable#setLocationSlot(int, int)}, so append and remove write in place and cost O(1), the array
+ * only gets copied when it runs out of slack.
+ * Writes must be serialized by the caller. Readers take no locks: they scan between {@link #beginRead()} and
+ * {@link #validate(int)} and scan again if a write ran meanwhile, since a remove moves the last row and a scan
+ * could meet it twice. Slots are atomic, so the version check is ordered with every row read.
+ */
+public class SlotList {
+    public static final SlotList EMPTY = new SlotList();
+
+    private volatile AtomicIntegerArray rows;
+    private volatile int size;
+    // odd while a write is in progress
+    private volatile int version;
+
+    public SlotList() {
+        rows = new AtomicIntegerArray(0);
+    }
+
+    // the list copies the given rows, row i takes slot i
+    public SlotList(int[] rows) {
+        this.rows = new AtomicIntegerArray(rows);
+        this.size = rows.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // slots below a size() read before are always there, their rows are only valid if validate() passes
+    public int get(int slot) {
+        return rows.get(slot);
+    }
+
+    // version to validate a scan against, waits for a write in progress
+    public int beginRead() {
+        int v;
+        while (((v = version) & 1) != 0) Thread.yield();
+        return v;
+    }
+
+    // true if no write ran since beginRead() returned the version
+    public boolean validate(int version) {
+        return this.version == version;
+    }
+
+    // returns the slot of the appended row
+    public int append(int row) {
+        version++;
+        int n = size;
+        AtomicIntegerArray r = rows;
+        if (n == r.length()) {
+            AtomicIntegerArray grown = new AtomicIntegerArray(n + (n >> 1) + 1);
+            for (int i = 0; i < n; i++) grown.lazySet(i, r.get(i));
+            rows = r = grown;
+        }
+        r.set(n, row);
+        size = n + 1;
+        version++;
+        return n;
+    }
+
+    // the last row takes the freed slot, returns that row or -1 if the removed row was the last one
+    public int removeAt(int slot) {
+        version++;
+        AtomicIntegerArray r = rows;
+        int last = size - 1;
+        int moved = -1;
+        if (slot < last) {
+            moved = r.get(last);
+            r.set(slot, moved);
+        }
+        size = last;
+        version++;
+        return moved;
+    }
+}
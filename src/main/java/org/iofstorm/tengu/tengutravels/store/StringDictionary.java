@@ -0,0 +1,74 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns strings into small int codes, so columns and filters can compare ints instead of strings
+ * and equal values of many entities are held once. Every value is kept along with its quoted utf-8 json,
+ * ready to be copied into responses. Codes are assigned under the lock, decoding takes none: a code
+ * is only handed out once its value is in the arrays, which are replaced when they grow.
+ */
+public class StringDictionary {
+    public static final int NOT_FOUND = -1;
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private volatile byte[][] jsons = new byte[64][];
+    private int size;
+
+    // returns existing code of the value or assigns a new one
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) return code;
+        synchronized (this) {
+            code = codes.get(value);
+            if (code == null) {
+                if (size == values.length) {
+                    jsons = Arrays.copyOf(jsons, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                code = size++;
+                jsons[code] = quote(value);
+                values[code] = value;
+                codes.put(value, code);
+            }
+            return code;
+        }
+    }
+
+    // lookup only, unknown values are not added
+    public int find(String value) {
+        Integer code = codes.get(value);
+        return code == null ? NOT_FOUND : code;
+    }
+
+    public String decode(int code) {
+        return values[code];
+    }
+
+    public byte[] json(int code) {
+        return jsons[code];
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    // escaped by gson itself, so the bytes are the same as gson would write
+    public static byte[] quote(String s) {
+        StringWriter out = new StringWriter(s.length() + 2);
+        try {
+            new JsonWriter(out).value(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,34 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Change counters of entities, ids are hashed to a fixed set of slots the same way as in {@link LockStripes}.
+ * Writers bump the counter once a change is complete, so a reader which takes the version before reading the
+ * entity and finds it unchanged afterwards has read no change half done. Ids sharing a slot only see each
+ * other's changes as extra ones.
+ */
+public class VersionCounters {
+    private final AtomicLongArray versions;
+    private final int mask;
+
+    public VersionCounters(int slots) {
+        int n = Integer.highestOneBit(Math.max(slots, 1));
+        if (n < slots) n <<= 1;
+        versions = new AtomicLongArray(n);
+        mask = n - 1;
+    }
+
+    public long get(int id) {
+        return versions.get(slotOf(id));
+    }
+
+    public void bump(int id) {
+        versions.incrementAndGet(slotOf(id));
+    }
+
+    private int slotOf(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
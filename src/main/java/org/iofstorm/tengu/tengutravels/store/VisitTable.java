@@ -0,0 +1,149 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+
+import java.util.Arrays;
+
+/**
+ * Struct of arrays visit storage, one row per visit. Besides the visit's own fields every row carries
+ * a denormalized copy of the user and location attributes used by the filters, so scans over
+ * /users/{id}/visits and /locations/{id}/avg never leave primitive arrays. The slot of the row in its
+ * location's {@link SlotList} is kept too, so the row leaves that list without a search.
+ * Columns are split into fixed size chunks which are never copied, growth only adds chunks, so a write
+ * to an existing row can't be lost to a concurrent append. Appends are serialized by the table itself,
+ * writes to a row must be serialized by the caller, reads may run concurrently with both.
+ */
+public class VisitTable {
+    private static final Gender[] GENDERS = Gender.values();
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile Chunk[] chunks = new Chunk[0];
+    private volatile int size;
+
+    public VisitTable(int expectedSize) {
+        ensureCapacity(expectedSize);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // adds the chunks at once before a bulk insert
+    public synchronized void ensureCapacity(int capacity) {
+        int n = (int) ((capacity + (long) CHUNK_MASK) >>> CHUNK_SHIFT);
+        if (n <= chunks.length) return;
+        Chunk[] c = Arrays.copyOf(chunks, n);
+        for (int i = chunks.length; i < n; i++) c[i] = new Chunk();
+        chunks = c;
+    }
+
+    // returns the row of the new visit
+    public synchronized int append(int visitId, long visitedAt, int mark, User user, Location location) {
+        int row = size;
+        if (row >>> CHUNK_SHIFT == chunks.length) ensureCapacity(row + 1);
+        Chunk c = chunk(row);
+        int i = row & CHUNK_MASK;
+        c.visitId[i] = visitId;
+        c.visitedAt[i] = visitedAt;
+        c.mark[i] = (byte) mark;
+        writeUser(c, i, user);
+        writeLocation(c, i, location);
+        size = row + 1;
+        return row;
+    }
+
+    public int getVisitId(int row) {
+        return chunk(row).visitId[row & CHUNK_MASK];
+    }
+
+    public long getVisitedAt(int row) {
+        return chunk(row).visitedAt[row & CHUNK_MASK];
+    }
+
+    public void setVisitedAt(int row, long visitedAt) {
+        chunk(row).visitedAt[row & CHUNK_MASK] = visitedAt;
+    }
+
+    public int getMark(int row) {
+        return chunk(row).mark[row & CHUNK_MASK];
+    }
+
+    public void setMark(int row, int mark) {
+        chunk(row).mark[row & CHUNK_MASK] = (byte) mark;
+    }
+
+    public int getUserId(int row) {
+        return chunk(row).userId[row & CHUNK_MASK];
+    }
+
+    public int getLocationId(int row) {
+        return chunk(row).locationId[row & CHUNK_MASK];
+    }
+
+    public long getUserBirthDate(int row) {
+        return chunk(row).userBirthDate[row & CHUNK_MASK];
+    }
+
+    public Gender getUserGender(int row) {
+        return GENDERS[chunk(row).userGender[row & CHUNK_MASK]];
+    }
+
+    public int getLocationDistance(int row) {
+        return chunk(row).locationDistance[row & CHUNK_MASK];
+    }
+
+    public int getLocationCountry(int row) {
+        return chunk(row).locationCountry[row & CHUNK_MASK];
+    }
+
+    public int getLocationSlot(int row) {
+        return chunk(row).locationSlot[row & CHUNK_MASK];
+    }
+
+    public void setLocationSlot(int row, int slot) {
+        chunk(row).locationSlot[row & CHUNK_MASK] = slot;
+    }
+
+    // also used to refresh the denormalized columns after the user was updated
+    public void setUser(int row, User user) {
+        writeUser(chunk(row), row & CHUNK_MASK, user);
+    }
+
+    // also used to refresh the denormalized columns after the location was updated
+    public void setLocation(int row, Location location) {
+        writeLocation(chunk(row), row & CHUNK_MASK, location);
+    }
+
+    private Chunk chunk(int row) {
+        return chunks[row >>> CHUNK_SHIFT];
+    }
+
+    private static void writeUser(Chunk c, int i, User user) {
+        c.userId[i] = user.getId();
+        c.userBirthDate[i] = user.getBirthDate();
+        c.userGender[i] = (byte) (user.getGender() == null ? Gender.UNKNOWN : user.getGender()).ordinal();
+    }
+
+    private static void writeLocation(Chunk c, int i, Location location) {
+        c.locationId[i] = location.getId();
+        c.locationDistance[i] = location.getDistance();
+        c.locationCountry[i] = location.getCountryCode();
+    }
+
+    private static final class Chunk {
+        final int[] visitId = new int[CHUNK_SIZE];
+        final long[] visitedAt = new long[CHUNK_SIZE];
+        final byte[] mark = new byte[CHUNK_SIZE];
+        final int[] userId = new int[CHUNK_SIZE];
+        final int[] locationId = new int[CHUNK_SIZE];
+        final long[] userBirthDate = new long[CHUNK_SIZE];
+        final byte[] userGender = new byte[CHUNK_SIZE];
+        final int[] locationDistance = new int[CHUNK_SIZE];
+        final int[] locationCountry = new int[CHUNK_SIZE];
+        final int[] locationSlot = new int[CHUNK_SIZE];
+    }
+}
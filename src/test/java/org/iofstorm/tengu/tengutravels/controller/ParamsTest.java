@@ -0,0 +1,83 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import org.springframework.util.NumberUtils;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class ParamsTest {
+    private static final String[] VALUES = {"0", "7", "-7", "+7", "007", " 12 ", "\t12\n", "", " ", "-", "+", "--1", "1-", "1.5",
+            "1e3", "0x10", "abc", "12abc", "\u0661\u0662", "2147483647", "2147483648", "-2147483648", "-2147483649",
+            "9223372036854775807", "9223372036854775808", "-9223372036854775808", "-9223372036854775809",
+            "99999999999999999999999", "00000000000000000000000042", "0x10", "0X1f", "-0x10", "+0x10", "#10", "-#10",
+            "0x", "0x-1", "0x7fffffff", "0x80000000", "-0x80000000", "0x7fffffffffffffff", "-0x8000000000000000", "0xg",
+            "1 2", " 1\t2 ", "0 x10", "- 5", "\u3000 7", "\u00a07", "\u00017", "010", "#", "-"};
+
+    @Test
+    public void testChecksAgreeWithTheConversionOfSpring() {
+        for (String value : VALUES) check(value);
+        Random random = new Random(3);
+        char[] alphabet = "0123456789+- xXaf#\t".toCharArray();
+        for (int i = 0; i < 100_000; i++) {
+            char[] chars = new char[1 + random.nextInt(21)];
+            for (int j = 0; j < chars.length; j++) chars[j] = alphabet[random.nextInt(alphabet.length)];
+            check(new String(chars));
+        }
+    }
+
+    @Test
+    public void testAbsentAndEmptyParamsAreNull() {
+        assertThat(Params.isLongParam(null), is(true));
+        assertThat(Params.isIntParam(""), is(true));
+        assertThat(Params.longParam(null), is(nullValue()));
+        assertThat(Params.intParam(""), is(nullValue()));
+        assertThat(Params.isInt(null), is(false));
+        assertThat(Params.isInt(""), is(false));
+    }
+
+    @Test
+    public void testHexAndInnerWhitespaceAreDecoded() {
+        assertThat(Params.parseInt("0x10"), is(equalTo(16)));
+        assertThat(Params.parseInt("-#1F"), is(equalTo(-31)));
+        assertThat(Params.parseInt("1 2"), is(equalTo(12)));
+        assertThat(Params.longParam("0x7fffffffffffffff"), is(equalTo(Long.MAX_VALUE)));
+        assertThat(Params.isInt("+0x10"), is(false));
+    }
+
+    @Test
+    public void testIdErrorStatus() {
+        assertThat(Params.idErrorStatus("99999999999"), is(equalTo(400)));
+        assertThat(Params.idErrorStatus("abc"), is(equalTo(404)));
+        assertThat(Params.idErrorStatus("-99999999999"), is(equalTo(404)));
+        assertThat(Params.idErrorStatus("12abc"), is(equalTo(404)));
+        assertThat(Params.idErrorStatus(""), is(equalTo(404)));
+    }
+
+    // as the typed path variables and request params converted them
+    private static void check(String value) {
+        Integer asInt = null;
+        Long asLong = null;
+        try {
+            asInt = NumberUtils.parseNumber(value, Integer.class);
+        } catch (IllegalArgumentException e) {
+            // not an int
+        }
+        try {
+            asLong = NumberUtils.parseNumber(value, Long.class);
+        } catch (IllegalArgumentException e) {
+            // not a long
+        }
+        assertThat(value, Params.isInt(value), is(equalTo(asInt != null)));
+        if (asInt != null) assertThat(value, Params.parseInt(value), is(equalTo(asInt)));
+        if (value.isEmpty()) return;
+        assertThat(value, Params.isIntParam(value), is(equalTo(asInt != null)));
+        assertThat(value, Params.isLongParam(value), is(equalTo(asLong != null)));
+        if (asInt != null) assertThat(value, Params.intParam(value), is(equalTo(asInt)));
+        if (asLong != null) assertThat(value, Params.longParam(value), is(equalTo(asLong)));
+    }
+}
@@ -0,0 +1,104 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PatchParserTest {
+    private static final long BIRTH_DATE = User.BIRTH_DATE_MIN + 86400;
+
+    @Test
+    public void testReadsTheFieldsOfTheBody() {
+        PatchParser parser = parser("{\"email\": \"a@b.ru\", \"first_name\":\"Ivan\",\n\"gender\" : \"f\", \"birth_date\": " + BIRTH_DATE + "}");
+        User user = parser.user();
+        assertThat(parser.status(), is(equalTo(PatchParser.OK)));
+        assertThat(user.getEmail(), is(equalTo("a@b.ru")));
+        assertThat(user.getFirstName(), is(equalTo("Ivan")));
+        assertThat(user.getLastName(), is(nullValue()));
+        assertThat(user.getGender(), is(equalTo(Gender.FEMALE)));
+        assertThat(user.getBirthDate(), is(equalTo(BIRTH_DATE)));
+
+        Location location = parser("{\"place\":\"\\u041c\\u043e\\u0441\\u043a\\u0432\\u0430 \\\"1\\\"\",\"distance\":\"42\"}").location();
+        assertThat(location.getPlace(), is(equalTo("Москва \"1\"")));
+        assertThat(location.getDistance(), is(equalTo(42)));
+
+        parser = parser("{}");
+        assertThat(parser.user(), is(notNullValue()));
+        assertThat(parser.status(), is(equalTo(PatchParser.OK)));
+    }
+
+    @Test
+    public void testNumbersAreTakenAsNumbersOrAsStringsOfDigits() {
+        Visit visit = parser("{\"mark\": \"5\", \"visited_at\": " + Location.VISITED_AT_MIN + "}").visit();
+        assertThat(visit.getMark(), is(equalTo(5)));
+        assertThat(visit.getVisitedAt(), is(equalTo(Location.VISITED_AT_MIN)));
+        assertThat(parser("{\"mark\": -0}").visit().getMark(), is(equalTo(0)));
+
+        for (String mark : new String[]{"6", "-1", "1.0", "1e0", "\"\"", "\" 1\"", "\"\\u0031\"", "true", "99999999999999999999"}) {
+            PatchParser parser = parser("{\"mark\": " + mark + "}");
+            assertThat(mark, parser.visit(), is(nullValue()));
+            assertThat(mark, parser.status(), is(equalTo(PatchParser.INVALID)));
+        }
+    }
+
+    @Test
+    public void testIdsNullsAndValuesOutOfRangeAreInvalid() {
+        String[] bodies = {
+                "{\"id\": 1}",
+                "{\"email\": null}",
+                "{\"gender\": \"x\"}",
+                "{\"gender\": \"mf\"}",
+                "{\"birth_date\": " + (User.BIRTH_DATE_MIN - 1) + "}",
+                "{\"first_name\": \"" + repeat('a', User.NAME_LENGTH + 1) + "\"}",
+        };
+        for (String body : bodies) {
+            PatchParser parser = parser(body);
+            assertThat(body, parser.user(), is(nullValue()));
+            assertThat(body, parser.status(), is(equalTo(PatchParser.INVALID)));
+        }
+        assertThat(parser("{\"first_name\": \"" + repeat('a', User.NAME_LENGTH) + "\"}").user(), is(notNullValue()));
+    }
+
+    @Test
+    public void testUnknownFieldsAreSkipped() {
+        PatchParser parser = parser("{\"country\": \"ru\", \"extra\": [1], \"x\": 1}");
+        assertThat(parser.location(), is(nullValue()));
+        assertThat(parser.status(), is(equalTo(PatchParser.MALFORMED)));
+
+        parser = parser("{\"x\": null, \"country\": \"ru\", \"y\": \"z\", \"z\": 1.5e3, \"w\": false}");
+        assertThat(parser.location().getCountry(), is(equalTo("ru")));
+        assertThat(parser.status(), is(equalTo(PatchParser.OK)));
+    }
+
+    @Test
+    public void testBodiesWhichAreNotObjectsOfScalarsAreMalformed() {
+        String[] bodies = {"", " ", "null", "[]", "\"a\"", "{", "{\"mark\": 1", "{\"mark\" 1}", "{\"mark\": 1,}", "{,}",
+                "{\"mark\": 1} x", "{\"mark\": {}}", "{\"mark\": 1, \"mark\": 2}", "{\"mark\": \"1}", "{mark: 1}",
+                "{\"mark\": \"\\x\"}", "{\"mark\": nul}", "{\"id\": 1, \"mark\": 1,}"};
+        for (String body : bodies) {
+            PatchParser parser = parser(body);
+            assertThat(body, parser.visit(), is(nullValue()));
+            assertThat(body, parser.status(), is(equalTo(PatchParser.MALFORMED)));
+        }
+    }
+
+    private static PatchParser parser(String body) {
+        return new PatchParser(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder s = new StringBuilder(n);
+        for (int i = 0; i < n; i++) s.append(c);
+        return s.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class RawRouterTest {
+
+    // statuses MVC mode answers, 0 where the request reaches the controller
+    @Test
+    public void testContentTypeIsCheckedAsInMvc() {
+        String[] types = {null, "", "application/json", "APPLICATION/JSON;charset=UTF-8", "application/vnd.x+json", "text/plain",
+                "application/x-www-form-urlencoded", "application/*", "*/*", "garbage", "application/json; charset=nope"};
+        int[] users = {415, 415, 0, 0, 415, 415, 415, 415, 415, 415, 415};
+        int[] newVisits = {400, 400, 0, 0, 0, 400, 400, 400, 400, 400, 400};
+        int[] visits = {0, 0, 0, 0, 0, 0, 0, 400, 400, 400, 400};
+        for (int i = 0; i < types.length; i++) {
+            assertThat(types[i], RawRouter.contentTypeStatus("users", true, types[i]), is(equalTo(users[i])));
+            assertThat(types[i], RawRouter.contentTypeStatus("locations", false, types[i]), is(equalTo(users[i])));
+            assertThat(types[i], RawRouter.contentTypeStatus("visits", true, types[i]), is(equalTo(newVisits[i])));
+            assertThat(types[i], RawRouter.contentTypeStatus("visits", false, types[i]), is(equalTo(visits[i])));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.iofstorm.tengu.tengutravels.controller;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.Mark;
+import org.iofstorm.tengu.tengutravels.model.ShortVisit;
+import org.iofstorm.tengu.tengutravels.model.ShortVisits;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class ResponseBufferTest {
+
+    private static final Gson gson = new GsonBuilder()
+            .disableHtmlEscaping()
+            .disableInnerClassSerialization()
+            .registerTypeAdapter(ShortVisit.class, new ShortVisit.ShortVisitAdapter())
+            .registerTypeAdapter(Mark.class, new Mark.MarkAdapter())
+            .create();
+
+    @Test
+    public void testShortVisitsAreWrittenAsGsonDoes() throws Exception {
+        String[] places = {"park", "\u041a\u0440\u0430\u0441\u043d\u0430\u044f", "quote \" and \\ slash", "tab\tnew\nline", "<b>&amp;</b>", " "};
+        Random random = new Random(5);
+        List<ShortVisit> expected = new ArrayList<>();
+        ResponseBuffer out = ResponseBuffer.get().beginShortVisits();
+        for (int i = 0; i < 5000; i++) {
+            Location location = new Location(i, places[random.nextInt(places.length)], "ru", "spb", 10);
+            int mark = random.nextInt(6);
+            long visitedAt = random.nextInt(Integer.MAX_VALUE) - (long) random.nextInt(1000);
+            expected.add(new ShortVisit(mark, visitedAt, location.getPlace()));
+            out.accept(mark, visitedAt, location);
+        }
+        out.endShortVisits();
+
+        // far over the pooled capacity, the response moved to the heap and the direct buffer is taken again
+        ByteBuffer body = out.flip();
+        assertThat(body.isDirect(), is(false));
+        assertThat(string(body), is(equalTo(gson.toJson(new ShortVisits(expected)))));
+        ByteBuffer empty = ResponseBuffer.get().beginShortVisits().endShortVisits().flip();
+        assertThat(empty.isDirect(), is(true));
+        assertThat(string(empty), is(equalTo(gson.toJson(new ShortVisits(Collections.emptyList())))));
+    }
+
+    @Test
+    public void testAvgIsWrittenAsGsonDoes() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            int count = 1 + random.nextInt(i % 2 == 0 ? 10 : 1_000_000);
+            int sum = random.nextInt(count * 5 + 1);
+            BigDecimal avg = sum == 0 ? BigDecimal.ZERO
+                    : BigDecimal.valueOf(sum).divide(BigDecimal.valueOf(count), 5, BigDecimal.ROUND_HALF_UP);
+
+            assertThat(string(ResponseBuffer.get().avg(sum, count).flip()), is(equalTo(gson.toJson(new Mark(avg)))));
+        }
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,233 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.service.LocationService;
+import org.iofstorm.tengu.tengutravels.service.UserService;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class MutationLogTest {
+    private File dir;
+    private File zip;
+
+    private final List<User> users = new ArrayList<>();
+    private final List<Location> locations = new ArrayList<>();
+    private final List<Visit> visits = new ArrayList<>();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("mutation-log").toFile();
+        zip = new File(dir, "data.zip");
+        Files.write(zip.toPath(), new byte[]{1, 2, 3});
+        users.clear();
+        locations.clear();
+        visits.clear();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        User user = user(4001, "Ivan");
+        Location location = new Location(4001, "park", "ru", "spb", 12);
+        UserService.users.put(user.getId(), user);
+        LocationService.locations.put(location.getId(), location);
+        Visit visit = new Visit();
+        visit.setId(4001);
+        visit.setUser(user);
+        visit.setLocation(location);
+        visit.setVisitedAt(1_000_000_000L);
+        visit.setMark(4);
+
+        MutationLog mutationLog = mutationLog();
+        replay(mutationLog);
+        mutationLog.open(zip);
+        mutationLog.append(user);
+        mutationLog.append(location);
+        mutationLog.append(visit);
+        mutationLog.awaitDurable();
+        user.setFirstName("Petr");
+        mutationLog.append(user);
+        mutationLog.close();
+
+        assertThat(replay(mutationLog()), is(equalTo(4)));
+        assertThat(users.size(), is(equalTo(2)));
+        assertThat(users.get(0).getFirstName(), is(equalTo("Ivan")));
+        assertThat(users.get(1).getFirstName(), is(equalTo("Petr")));
+        assertThat(users.get(1).getGender(), is(equalTo(Gender.MALE)));
+        assertThat(users.get(1).getBirthDate(), is(equalTo(-1000L)));
+        assertThat(locations.get(0).getPlace(), is(equalTo("park")));
+        assertThat(locations.get(0).getDistance(), is(equalTo(12)));
+        assertThat(visits.get(0).getUserId(), is(equalTo(4001)));
+        assertThat(visits.get(0).getLocationId(), is(equalTo(4001)));
+        assertThat(visits.get(0).getVisitedAt(), is(equalTo(1_000_000_000L)));
+        assertThat(visits.get(0).getMark(), is(equalTo(4)));
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        MutationLog mutationLog = mutationLog();
+        replay(mutationLog);
+        mutationLog.open(zip);
+        mutationLog.append(user(4002, "Olga"));
+        mutationLog.close();
+        long validLength = new File(dir, "journal").length();
+
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "journal"), true)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        }
+
+        mutationLog = mutationLog();
+        assertThat(replay(mutationLog), is(equalTo(1)));
+        mutationLog.open(zip);
+        mutationLog.close();
+        assertThat(new File(dir, "journal").length(), is(equalTo(validLength)));
+    }
+
+    @Test
+    public void testLogOfAnotherZipIsStartedOver() throws Exception {
+        MutationLog mutationLog = mutationLog();
+        replay(mutationLog);
+        mutationLog.open(zip);
+        mutationLog.append(user(4003, "Anna"));
+        mutationLog.close();
+
+        Files.write(zip.toPath(), new byte[]{1, 2, 3, 4});
+
+        mutationLog = mutationLog();
+        assertThat(replay(mutationLog), is(equalTo(0)));
+        mutationLog.open(zip);
+        mutationLog.close();
+        assertThat(replay(mutationLog()), is(equalTo(0)));
+        assertThat(users, is(empty()));
+    }
+
+    @Test
+    public void testFailedWriteIsNotAcknowledged() throws Exception {
+        MutationLog mutationLog = mutationLog();
+        replay(mutationLog);
+        mutationLog.open(zip);
+        mutationLog.append(user(4007, "Yana"));
+        assertThat(mutationLog.awaitDurable(), is(true));
+
+        ((FileChannel) ReflectionTestUtils.getField(mutationLog, "channel")).close();
+        mutationLog.append(user(4008, "Gleb"));
+        assertThat(mutationLog.awaitDurable(), is(false));
+        mutationLog.append(user(4009, "Vera"));
+        assertThat(mutationLog.awaitDurable(), is(false));
+        mutationLog.close();
+
+        assertThat(replay(mutationLog()), is(equalTo(1)));
+        assertThat(users.get(0).getId(), is(equalTo(4007)));
+    }
+
+    @Test
+    public void testStartOverDropsReplayedRecords() throws Exception {
+        MutationLog mutationLog = mutationLog();
+        replay(mutationLog);
+        mutationLog.open(zip);
+        long emptyLength = new File(dir, "journal").length();
+        mutationLog.append(user(4006, "Inna"));
+        mutationLog.close();
+
+        mutationLog = mutationLog();
+        assertThat(replay(mutationLog), is(equalTo(1)));
+        mutationLog.startOver();
+        mutationLog.open(zip);
+        mutationLog.close();
+        assertThat(new File(dir, "journal").length(), is(equalTo(emptyLength)));
+        assertThat(replay(mutationLog()), is(equalTo(0)));
+    }
+
+    @Test
+    public void testVisitAheadOfItsUserIsReplayedAfterTheLog() throws Exception {
+        User user = user(4004, "Oleg");
+        Location location = new Location(4004, "museum", "ru", "msk", 3);
+        Visit visit = new Visit();
+        visit.setId(4004);
+        visit.setUser(user);
+        visit.setLocation(location);
+        visit.setVisitedAt(1_000_000_000L);
+        visit.setMark(2);
+        Visit orphan = new Visit();
+        orphan.setId(4005);
+        orphan.setUser(user(4005, "Nobody"));
+        orphan.setLocation(location);
+        orphan.setVisitedAt(1_000_000_000L);
+        orphan.setMark(1);
+
+        // the order a log written by a create which published the user before logging it could have
+        MutationLog mutationLog = mutationLog();
+        replay(mutationLog);
+        mutationLog.open(zip);
+        mutationLog.append(visit);
+        mutationLog.append(orphan);
+        mutationLog.append(user);
+        mutationLog.append(location);
+        visit.setMark(5);
+        mutationLog.append(visit);
+        mutationLog.close();
+
+        // users and locations go to the stores as DataLoader replays them
+        int count = mutationLog().replay(zip, usr -> {
+            UserService.users.put(usr.getId(), usr);
+            users.add(usr);
+        }, loc -> {
+            LocationService.locations.put(loc.getId(), loc);
+            locations.add(loc);
+        }, visits::add);
+
+        assertThat(count, is(equalTo(5)));
+        assertThat(users.size(), is(equalTo(1)));
+        assertThat(locations.size(), is(equalTo(1)));
+        assertThat(visits.size(), is(equalTo(1)));
+        assertThat(visits.get(0).getId(), is(equalTo(4004)));
+        assertThat(visits.get(0).getUserId(), is(equalTo(4004)));
+        assertThat(visits.get(0).getLocationId(), is(equalTo(4004)));
+        assertThat(visits.get(0).getMark(), is(equalTo(5)));
+    }
+
+    private int replay(MutationLog mutationLog) throws Exception {
+        return mutationLog.replay(zip, users::add, locations::add, visits::add);
+    }
+
+    private MutationLog mutationLog() {
+        MutationLog mutationLog = new MutationLog();
+        ReflectionTestUtils.setField(mutationLog, "journalPath", new File(dir, "journal").getPath());
+        ReflectionTestUtils.setField(mutationLog, "sync", true);
+        return mutationLog;
+    }
+
+    private static User user(int id, String firstName) {
+        User user = new User();
+        user.setId(id);
+        user.setEmail(firstName.toLowerCase() + "@mail.ru");
+        user.setFirstName(firstName);
+        user.setLastName("Ivanov");
+        user.setGender(Gender.MALE);
+        user.setBirthDate(-1000L);
+        return user;
+    }
+}
@@ -0,0 +1,45 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class OptionsTest {
+
+    @Test(dataProvider = "optionsDataProvider")
+    public void testParse(String text, RunMode expectedMode) throws Exception {
+        Options options = Options.parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+
+        assertThat(options.getTimestamp(), is(equalTo(1503695452L)));
+        assertThat(options.getReferenceTime(), is(equalTo(LocalDateTime.of(2017, 8, 25, 21, 10, 52))));
+        assertThat(options.getMode(), is(equalTo(expectedMode)));
+    }
+
+    @Test(dataProvider = "malformedOptionsDataProvider", expectedExceptions = IOException.class)
+    public void testParseMalformed(String text) throws Exception {
+        Options.parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @DataProvider(name = "optionsDataProvider")
+    public static Object[][] optionsDataProvider() {
+        return new Object[][]{
+                {"1503695452\n0\n", RunMode.TEST},
+                {"1503695452\n1\n", RunMode.RATING},
+                {"1503695452\r\n0\r\n", RunMode.TEST},
+                {" 1503695452 \n", RunMode.RATING}
+        };
+    }
+
+    @DataProvider(name = "malformedOptionsDataProvider")
+    public static Object[][] malformedOptionsDataProvider() {
+        return new Object[][]{{""}, {"yesterday\n1\n"}, {"1503695452\nrating\n"}};
+    }
+}
@@ -0,0 +1,70 @@
+package org.iofstorm.tengu.tengutravels.loader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class SnapshotTest {
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("snapshot", ".bin");
+        byte[] body = new byte[100_000];
+        new Random(9).nextBytes(body);
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            CheckedOutputStream checked = new CheckedOutputStream(fileOut, new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.write(body);
+            Snapshot.writeTrailer(out, checked);
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testCompleteSnapshotIsUsed() throws Exception {
+        assertThat(isComplete(), is(true));
+    }
+
+    @Test
+    public void testTruncatedSnapshotIsNotUsed() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        assertThat(isComplete(), is(false));
+    }
+
+    @Test
+    public void testDamagedSnapshotIsNotUsed() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(50_000);
+            int b = raf.read();
+            raf.seek(50_000);
+            raf.write(b ^ 0x10);
+        }
+        assertThat(isComplete(), is(false));
+    }
+
+    private boolean isComplete() throws Exception {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Snapshot.isComplete(channel, file);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.iofstorm.tengu.tengutravels.metrics;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverValuesWithBoundedError() {
+        Random random = new Random(5);
+        for (int i = 0; i < 100_000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertThat(LatencyHistogram.lowerBound(bucket), is(lessThanOrEqualTo(value)));
+            assertThat(LatencyHistogram.upperBound(bucket), is(greaterThanOrEqualTo(value)));
+            // 8 sub-buckets per power of two, the bucket is at most 1/8 of its lower bound wide
+            long width = LatencyHistogram.upperBound(bucket) - LatencyHistogram.lowerBound(bucket);
+            assertThat(width, is(lessThanOrEqualTo(Math.max(0, LatencyHistogram.lowerBound(bucket) / 8))));
+        }
+        assertThat(LatencyHistogram.bucketOf(Long.MAX_VALUE), is(equalTo(LatencyHistogram.BUCKETS - 1)));
+        for (int b = 1; b < LatencyHistogram.BUCKETS; b++) {
+            assertThat(LatencyHistogram.lowerBound(b), is(equalTo(LatencyHistogram.upperBound(b - 1) + 1)));
+        }
+    }
+
+    @Test
+    public void testQuantilesOfRecordedValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[40_000];
+        Random random = new Random(8);
+        for (int i = 0; i < values.length; i++) values[i] = 1000 + random.nextInt(1_000_000);
+
+        // threads land on different stripes, the snapshot sums them up
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t * values.length / threads.length;
+            int last = (t + 1) * values.length / threads.length;
+            threads[t] = new Thread(() -> {
+                for (int i = first; i < last; i++) histogram.record(values[i]);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        long[] buckets = histogram.snapshot();
+        Arrays.sort(values);
+        assertThat(LatencyHistogram.count(buckets), is(equalTo((long) values.length)));
+        for (double quantile : new double[]{0.5, 0.99, 0.999}) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long estimate = LatencyHistogram.quantile(buckets, quantile);
+            assertThat(estimate, is(greaterThanOrEqualTo(exact)));
+            assertThat(estimate, is(lessThanOrEqualTo(exact + exact / 8)));
+        }
+        assertThat(LatencyHistogram.max(buckets), is(greaterThanOrEqualTo(values[values.length - 1])));
+
+        histogram.reset();
+        assertThat(LatencyHistogram.count(histogram.snapshot()), is(equalTo(0L)));
+        assertThat(LatencyHistogram.quantile(histogram.snapshot(), 0.5), is(equalTo(0L)));
+    }
+}
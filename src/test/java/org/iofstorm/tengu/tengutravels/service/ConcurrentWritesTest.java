@@ -0,0 +1,248 @@
+package org.iofstorm.tengu.tengutravels.service;
+
+import org.iofstorm.tengu.tengutravels.loader.DataLoader;
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.ShortVisit;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.iofstorm.tengu.tengutravels.store.MarkAggregate;
+import org.iofstorm.tengu.tengutravels.store.VisitTable;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.iofstorm.tengu.tengutravels.controller.ControllerHelper.OK;
+
+public class ConcurrentWritesTest {
+    private static final int FIRST_USER = 6001;
+    private static final int USERS = 40;
+    private static final int FIRST_LOCATION = 6001;
+    private static final int LOCATIONS = 20;
+    private static final int FIRST_VISIT = 6001;
+    private static final int VISITS = 2000;
+    private static final int FIRST_NEW_VISIT = 9001;
+    private static final int NEW_VISITS = 500;
+    private static final String[] COUNTRIES = {"ru", "fr", "de"};
+
+    private static final int WRITERS = 8;
+    private static final int READERS = 2;
+    private static final int OPS = 4000;
+
+    @BeforeClass
+    public void setUpClock() {
+        if (DataLoader.NOW_TS == null) DataLoader.NOW_TS = LocalDateTime.ofEpochSecond(1503695452L, 0, ZoneOffset.UTC);
+    }
+
+    @Test
+    public void testConcurrentWritesKeepIndexesConsistent() throws Exception {
+        UserService userService = new UserService();
+        LocationService locationService = new LocationService();
+        VisitService visitService = new VisitService();
+        userService.setVisitService(visitService);
+        ReflectionTestUtils.setField(locationService, "visitService", visitService);
+        visitService.setUserService(userService);
+        visitService.setLocationService(locationService);
+
+        Random random = new Random(12);
+        for (int i = 0; i < USERS; i++) {
+            assertThat(userService.createUser(user(FIRST_USER + i, random)), is(equalTo(OK)));
+        }
+        for (int i = 0; i < LOCATIONS; i++) {
+            Location location = new Location(FIRST_LOCATION + i, "place" + i, COUNTRIES[i % COUNTRIES.length], "city", 1 + random.nextInt(100));
+            assertThat(locationService.createLocation(location), is(equalTo(OK)));
+        }
+        for (int i = 0; i < VISITS; i++) {
+            assertThat(visitService.createVisit(visit(FIRST_VISIT + i, random)), is(equalTo(OK)));
+        }
+
+        Set<Integer> attempted = ConcurrentHashMap.newKeySet();
+        AtomicInteger created = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+
+        for (int t = 0; t < WRITERS; t++) {
+            long seed = t;
+            writers.add(thread(failure, start, () -> {
+                Random rnd = new Random(seed);
+                for (int i = 0; i < OPS; i++) {
+                    int op = rnd.nextInt(100);
+                    if (op < 35) {
+                        Visit patch = new Visit();
+                        if (rnd.nextBoolean()) patch.setUser(UserService.users.get(FIRST_USER + rnd.nextInt(USERS)));
+                        if (rnd.nextBoolean()) patch.setLocation(LocationService.locations.get(FIRST_LOCATION + rnd.nextInt(LOCATIONS)));
+                        if (rnd.nextBoolean()) patch.setVisitedAt(rnd.nextInt(1000));
+                        if (rnd.nextBoolean()) patch.setMark(rnd.nextInt(6));
+                        visitService.updateVisit(FIRST_VISIT + rnd.nextInt(VISITS), patch);
+                    } else if (op < 50) {
+                        User patch = new User();
+                        patch.setGender(rnd.nextBoolean() ? Gender.MALE : Gender.FEMALE);
+                        if (rnd.nextBoolean()) patch.setBirthDate(birthDate(rnd));
+                        assertThat(userService.updateUser(FIRST_USER + rnd.nextInt(USERS), patch), is(equalTo(OK)));
+                    } else if (op < 65) {
+                        Location patch = new Location();
+                        patch.setDistance(1 + rnd.nextInt(100));
+                        if (rnd.nextBoolean()) patch.setCountry(COUNTRIES[rnd.nextInt(COUNTRIES.length)]);
+                        assertThat(locationService.updateLocation(FIRST_LOCATION + rnd.nextInt(LOCATIONS), patch), is(equalTo(OK)));
+                    } else {
+                        // all writers go for the same ids, every id must be created exactly once
+                        int id = FIRST_NEW_VISIT + i % NEW_VISITS;
+                        attempted.add(id);
+                        if (visitService.createVisit(visit(id, rnd)) == OK) created.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (int t = 0; t < READERS; t++) {
+            long seed = 100 + t;
+            readers.add(thread(failure, start, () -> {
+                Random rnd = new Random(seed);
+                while (!done.get()) {
+                    visitService.getUserVisits(FIRST_USER + rnd.nextInt(USERS), null, null, COUNTRIES[rnd.nextInt(COUNTRIES.length)], 50);
+                    locationService.getMarkSumAndCount(FIRST_LOCATION + rnd.nextInt(LOCATIONS), 100L, 900L, null, null, Gender.FEMALE);
+                    locationService.getMarkSumAndCount(FIRST_LOCATION + rnd.nextInt(LOCATIONS), null, null, 30, 50, Gender.UNKNOWN);
+                }
+            }));
+        }
+
+        start.countDown();
+        for (Thread w : writers) w.join();
+        done.set(true);
+        for (Thread r : readers) r.join();
+
+        assertThat(failure.get(), is(nullValue()));
+        assertThat(created.get(), is(equalTo(attempted.size())));
+
+        // denormalized columns follow the entities
+        VisitTable table = visitService.getTable();
+        List<Visit> all = new ArrayList<>();
+        visitService.getVisits().forEach((id, visit) -> {
+            if (id >= FIRST_VISIT) all.add(visit);
+        });
+        assertThat(all.size(), is(equalTo(VISITS + attempted.size())));
+        for (Visit visit : all) {
+            int row = visit.getRow();
+            User user = UserService.users.get(table.getUserId(row));
+            Location location = LocationService.locations.get(table.getLocationId(row));
+            assertThat(table.getUserGender(row), is(equalTo(user.getGender())));
+            assertThat(table.getUserBirthDate(row), is(equalTo(user.getBirthDate())));
+            assertThat(table.getLocationDistance(row), is(equalTo(location.getDistance())));
+            assertThat(table.getLocationCountry(row), is(equalTo(location.getCountryCode())));
+        }
+
+        // user index holds exactly the user's visits, ordered by visited_at
+        for (int u = FIRST_USER; u < FIRST_USER + USERS; u++) {
+            int userId = u;
+            List<String> expected = all.stream()
+                    .filter(v -> v.getUserId() == userId)
+                    .map(v -> v.getVisitedAt() + ":" + v.getMark() + ":" + LocationService.locations.get(v.getLocationId()).getPlace())
+                    .sorted().collect(Collectors.toList());
+            List<ShortVisit> actual = visitService.getUserVisits(userId, null, null, null, null).getVisits();
+            for (int i = 1; i < actual.size(); i++) {
+                assertThat(actual.get(i - 1).getVisitedAt() <= actual.get(i).getVisitedAt(), is(true));
+            }
+            List<String> actualKeys = actual.stream()
+                    .map(v -> v.getVisitedAt() + ":" + v.getMark() + ":" + v.getPlace())
+                    .collect(Collectors.toList());
+            Collections.sort(actualKeys);
+            assertThat(actualKeys, is(equalTo(expected)));
+
+            // country index holds the same visits under the current countries of their locations
+            for (String country : COUNTRIES) {
+                List<String> expectedInCountry = all.stream()
+                        .filter(v -> v.getUserId() == userId && v.getVisitedAt() > 200 && v.getVisitedAt() < 800)
+                        .filter(v -> LocationService.locations.get(v.getLocationId()).getCountry().equals(country))
+                        .map(v -> v.getVisitedAt() + ":" + v.getMark())
+                        .sorted().collect(Collectors.toList());
+                List<ShortVisit> inCountry = visitService.getUserVisits(userId, 200L, 800L, country, null).getVisits();
+                for (int i = 1; i < inCountry.size(); i++) {
+                    assertThat(inCountry.get(i - 1).getVisitedAt() <= inCountry.get(i).getVisitedAt(), is(true));
+                }
+                List<String> inCountryKeys = inCountry.stream()
+                        .map(v -> v.getVisitedAt() + ":" + v.getMark())
+                        .sorted().collect(Collectors.toList());
+                assertThat(inCountryKeys, is(equalTo(expectedInCountry)));
+            }
+        }
+
+        // location index and marks agree with the visits, both for the prefix sums and the scan
+        for (int l = FIRST_LOCATION; l < FIRST_LOCATION + LOCATIONS; l++) {
+            for (Gender gender : new Gender[]{Gender.UNKNOWN, Gender.MALE, Gender.FEMALE}) {
+                int locationId = l;
+                int sum = 0;
+                int count = 0;
+                for (Visit v : all) {
+                    if (v.getLocationId() != locationId) continue;
+                    if (gender != Gender.UNKNOWN && UserService.users.get(v.getUserId()).getGender() != gender) continue;
+                    sum += v.getMark();
+                    count++;
+                }
+                long byAggregate = locationService.getMarkSumAndCount(locationId, null, null, null, null, gender);
+                long byScan = locationService.getMarkSumAndCount(locationId, null, null, 0, 1000, gender);
+                assertThat(MarkAggregate.sumOf(byAggregate), is(equalTo(sum)));
+                assertThat(MarkAggregate.countOf(byAggregate), is(equalTo(count)));
+                assertThat(byScan, is(equalTo(byAggregate)));
+            }
+        }
+    }
+
+    private static Thread thread(AtomicReference<Throwable> failure, CountDownLatch start, Runnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                start.await();
+                body.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static User user(int id, Random random) {
+        User user = new User();
+        user.setId(id);
+        user.setEmail("user" + id + "@mail.ru");
+        user.setFirstName("Ivan");
+        user.setLastName("Ivanov");
+        user.setGender(random.nextBoolean() ? Gender.MALE : Gender.FEMALE);
+        user.setBirthDate(birthDate(random));
+        return user;
+    }
+
+    // 1950 - 2000
+    private static long birthDate(Random random) {
+        return -631152000L + (long) random.nextInt(50 * 365) * 86400 + random.nextInt(86400);
+    }
+
+    private static Visit visit(int id, Random random) {
+        Visit visit = new Visit();
+        visit.setId(id);
+        visit.setUser(UserService.users.get(FIRST_USER + random.nextInt(USERS)));
+        visit.setLocation(LocationService.locations.get(FIRST_LOCATION + random.nextInt(LOCATIONS)));
+        visit.setVisitedAt(random.nextInt(1000));
+        visit.setMark(random.nextInt(6));
+        return visit;
+    }
+}
@@ -1,28 +1,30 @@
 package org.iofstorm.tengu.tengutravels.service;
 
-import org.iofstorm.tengu.tengutravels.Utils;
 import org.iofstorm.tengu.tengutravels.controller.ControllerHelper;
+import org.iofstorm.tengu.tengutravels.model.Gender;
 import org.iofstorm.tengu.tengutravels.model.User;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
+
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.samePropertyValuesAs;
-import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 public class UserServiceTest {
 
     @Test(dataProvider = "getUserDataProvider")
-    public void testGetUser(Integer id, User expectedResult) throws Exception {
-        UserService userService = new UserService(null, null);
+    public void testGetUser(int id, User expectedResult) throws Exception {
+        UserService userService = new UserService();
         User testUser = new User();
         testUser.setId(1);
         userService.addUserForTest(testUser);
-        User actual = userService.getUser(id);
+        User actual = userService.getUserWithoutLock(id);
 
         if (expectedResult != null) assertThat(actual, samePropertyValuesAs( expectedResult ));
         else assertNull( actual );
@@ -30,7 +32,7 @@ public class UserServiceTest {
 
     @Test(dataProvider = "userExistDataProvider")
     public void testUserExist(Integer id, Boolean expectedResult) throws Exception {
-        UserService userService = new UserService(null, null);
+        UserService userService = new UserService();
         User u = new User();
         u.setId(1);
         userService.addUserForTest(u);
@@ -39,8 +41,7 @@ public class UserServiceTest {
 
     @Test(dataProvider = "createUserDataProvider")
     public void testCreateUser(User user, Integer expectedCode) throws Exception {
-        Utils utilsMock = mock(Utils.class);
-        UserService userService = new UserService(utilsMock, null);
+        UserService userService = new UserService();
 
         User existingUser = new User();
         existingUser.setId(1);
@@ -54,25 +55,46 @@ public class UserServiceTest {
 
     @Test(dataProvider = "updateUserDataProvider")
     public void testUpdateUser(Integer id, User userToUpdate, User existingUser, Integer expectedStatus, User expectedUser) throws Exception {
-        UserService userService = new UserService(mock(Utils.class), null);
+        UserService userService = new UserService();
+        userService.setVisitService(new VisitService());
         if (existingUser != null) userService.addUserForTest(existingUser);
 
         Integer actualStatus = userService.updateUser(id, userToUpdate);
 
-        User actualUser = userService.getUser(id);
+        User actualUser = userService.getUserWithoutLock(id);
 
         assertThat(actualStatus, is(equalTo(expectedStatus)));
         if (expectedUser != null) assertThat(actualUser, samePropertyValuesAs(expectedUser));
         else assertNull(actualUser);
     }
 
+    @Test
+    public void testUpdateUserRefreshesJson() throws Exception {
+        UserService userService = new UserService();
+        userService.setVisitService(new VisitService());
+        User user = shallowUser(5);
+        user.setEmail("old@ya.ru");
+        user.setFirstName("vasya");
+        user.setLastName("pupkin");
+        user.setBirthDate(556577660L);
+        user.setGender(Gender.MALE);
+        userService.addUserForTest(user);
+        assertThat(new String(user.jsonBytes(), StandardCharsets.UTF_8), containsString("\"first_name\":\"vasya\""));
+
+        User userToUpdate = new User();
+        userToUpdate.setFirstName("\u0432\u0430\u0441\u044f");
+        userService.updateUser(5, userToUpdate);
+
+        assertThat(new String(user.jsonBytes(), StandardCharsets.UTF_8), containsString("\"first_name\":\"\u0432\u0430\u0441\u044f\""));
+    }
+
     @DataProvider(name = "getUserDataProvider")
     public static Object[][] getUserDataProvider() {
         User u = new User();
         u.setId(1);
         return new Object[][]{
                 {1, u},
-                {null, null},
+                {0, null},
                 {2, null}
         };
     }
@@ -90,7 +112,7 @@ public class UserServiceTest {
     public static Object[][] Name() {
         return new Object[][]{
                 {shallowUser(1), ControllerHelper.BAD_REQUEST},
-                {shallowUser(2), ControllerHelper.OK}
+                {shallowUser(3), ControllerHelper.OK}
         };
     }
 
@@ -101,21 +123,21 @@ public class UserServiceTest {
         existingUser.setFirstName("vasya");
         existingUser.setLastName("pupkin");
         existingUser.setBirthDate(556577660L);
-        existingUser.setGender("m");
+        existingUser.setGender(Gender.MALE);
 
         User userToUpdate1 = new User();
         userToUpdate1.setEmail("new@ya.ru");
         userToUpdate1.setFirstName("lena");
         userToUpdate1.setLastName("golovach");
         userToUpdate1.setBirthDate(619736060L);
-        userToUpdate1.setGender("f");
+        userToUpdate1.setGender(Gender.FEMALE);
 
         User expectedUser1 = shallowUser(1);
         expectedUser1.setEmail("new@ya.ru");
         expectedUser1.setFirstName("lena");
         expectedUser1.setLastName("golovach");
         expectedUser1.setBirthDate(619736060L);
-        expectedUser1.setGender("f");
+        expectedUser1.setGender(Gender.FEMALE);
 
         return new Object[][]{
                 {1, userToUpdate1, existingUser, ControllerHelper.OK, expectedUser1}
@@ -2,13 +2,32 @@ package org.iofstorm.tengu.tengutravels.service;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.iofstorm.tengu.tengutravels.loader.DataLoader;
+import org.iofstorm.tengu.tengutravels.model.Gender;
 import org.iofstorm.tengu.tengutravels.model.Location;
 import org.iofstorm.tengu.tengutravels.model.Mark;
 import org.iofstorm.tengu.tengutravels.model.ShortVisit;
+import org.iofstorm.tengu.tengutravels.model.ShortVisits;
 import org.iofstorm.tengu.tengutravels.model.User;
 import org.iofstorm.tengu.tengutravels.model.Visit;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -24,6 +43,11 @@ public class VisitServiceTest {
             .registerTypeAdapter(Mark.class, new Mark.MarkAdapter())
             .create();
 
+    @BeforeClass
+    public void setUpClock() {
+        if (DataLoader.NOW_TS == null) DataLoader.NOW_TS = LocalDateTime.ofEpochSecond(1503695452L, 0, ZoneOffset.UTC);
+    }
+
     @Test
     public void testUpdateVisit() throws Exception {
         VisitService visitService = new VisitService();
@@ -32,11 +56,10 @@ public class VisitServiceTest {
 
         visitService.setUserService(userServiceMock);
         visitService.setLocationService(locationServiceMock);
-        visitService.setGson(gson);
 
         User andrei = user(1, "Andrei", "m", 22);
         Location spb = location(1, "spb", "ru");
-        Visit v1 = visit(1, 1, 1, 123L, 5);
+        Visit v1 = visit(1, andrei, spb, 123L, 5);
 
         when(userServiceMock.getUserWithoutLock(1)).thenReturn(andrei);
         when(locationServiceMock.getLocationWithoutLock(1)).thenReturn(spb);
@@ -46,12 +69,149 @@ public class VisitServiceTest {
         System.out.println();
     }
 
+    @Test
+    public void testGetUserVisits() throws Exception {
+        VisitService visitService = new VisitService();
+        UserService userServiceMock = mock(UserService.class);
+        LocationService locationServiceMock = mock(LocationService.class);
+
+        visitService.setUserService(userServiceMock);
+        visitService.setLocationService(locationServiceMock);
+
+        User lena = user(1001, "Lena", "f", 30);
+        Location spb = storedLocation(1001, "spb", "ru", 10);
+        Location paris = storedLocation(1002, "paris", "fr", 100);
+        UserService.users.put(lena.getId(), lena);
+
+        when(userServiceMock.getUserWithoutLock(1001)).thenReturn(lena);
+        when(locationServiceMock.getLocationWithoutLock(1001)).thenReturn(spb);
+        when(locationServiceMock.getLocationWithoutLock(1002)).thenReturn(paris);
+
+        visitService.createVisit(visit(1001, lena, spb, 300L, 3));
+        visitService.createVisit(visit(1002, lena, paris, 100L, 1));
+        visitService.createVisit(visit(1003, lena, spb, 200L, 2));
+
+        assertThat(places(visitService.getUserVisits(1001, null, null, null, null)), contains("paris", "spb", "spb"));
+        assertThat(places(visitService.getUserVisits(1001, 100L, 300L, null, null)), contains("spb"));
+        assertThat(places(visitService.getUserVisits(1001, null, null, "ru", null)), contains("spb", "spb"));
+        assertThat(places(visitService.getUserVisits(1001, null, null, null, 50)), contains("spb", "spb"));
+        assertThat(places(visitService.getUserVisits(1001, null, null, "de", null)), is(empty()));
+
+        Visit patch = new Visit();
+        patch.setLocation(paris);
+        visitService.updateVisit(1003, patch);
+
+        assertThat(places(visitService.getUserVisits(1001, null, null, "fr", null)), contains("paris", "paris"));
+        assertThat(visitService.getVisitWithoutLock(1003).getLocationId(), is(equalTo(1002)));
+        assertThat(visitService.getVisitWithoutLock(1003).getVisitedAt(), is(equalTo(200L)));
+
+        patch = new Visit();
+        patch.setVisitedAt(50L);
+        visitService.updateVisit(1001, patch);
+
+        assertThat(places(visitService.getUserVisits(1001, null, null, null, null)), contains("spb", "paris", "paris"));
+        assertThat(places(visitService.getUserVisits(1001, 50L, 200L, null, null)), contains("paris"));
+    }
+
+    @Test
+    public void testFinishLoadIndexesLoadedVisits() throws Exception {
+        VisitService visitService = new VisitService();
+        LocationService locationService = new LocationService();
+        ReflectionTestUtils.setField(locationService, "visitService", visitService);
+
+        User olga = user(2001, "Olga", "f", 40);
+        User petr = user(2002, "Petr", "m", 20);
+        Location rome = storedLocation(2001, "rome", "it", 10);
+        Location oslo = storedLocation(2002, "oslo", "no", 20);
+        UserService.users.put(olga.getId(), olga);
+        UserService.users.put(petr.getId(), petr);
+
+        visitService.load(Arrays.asList(
+                visit(2001, olga, oslo, 300L, 1),
+                visit(2002, petr, rome, 100L, 4),
+                visit(2003, olga, rome, 200L, 2)));
+        visitService.load(Collections.singletonList(visit(2004, olga, rome, 300L, 5)));
+        visitService.finishLoad();
+
+        // equal visited_at keep the loading order
+        assertThat(places(visitService.getUserVisits(2001, null, null, null, null)), contains("rome", "oslo", "rome"));
+        assertThat(locationService.getAverageMark(2001, null, null, null, null, Gender.UNKNOWN).getAvg(), is(equalTo(new BigDecimal("3.66667"))));
+        assertThat(locationService.getAverageMark(2001, null, null, 30, null, Gender.UNKNOWN).getAvg(), is(equalTo(new BigDecimal("3.50000"))));
+
+        Visit patch = new Visit();
+        patch.setLocation(oslo);
+        visitService.updateVisit(2003, patch);
+
+        assertThat(places(visitService.getUserVisits(2001, null, null, null, null)), contains("oslo", "oslo", "rome"));
+        assertThat(locationService.getAverageMark(2001, null, null, 30, null, Gender.UNKNOWN).getAvg(), is(equalTo(new BigDecimal("5.00000"))));
+        assertThat(locationService.getAverageMark(2002, null, null, 30, null, Gender.UNKNOWN).getAvg(), is(equalTo(new BigDecimal("1.50000"))));
+    }
+
+    @Test
+    public void testWritesBumpVersionsOfWhatTheyChange() throws Exception {
+        UserService userService = new UserService();
+        LocationService locationService = new LocationService();
+        VisitService visitService = new VisitService();
+        userService.setVisitService(visitService);
+        ReflectionTestUtils.setField(locationService, "visitService", visitService);
+        visitService.setUserService(userService);
+        visitService.setLocationService(locationService);
+
+        User ivan = user(3001, "Ivan", "m", 30);
+        Location kiev = storedLocation(3001, "kiev", "ua", 10);
+        Location riga = storedLocation(3002, "riga", "lv", 20);
+        UserService.users.put(ivan.getId(), ivan);
+
+        long user = UserService.versions.get(3001);
+        long from = LocationService.versions.get(3001);
+        long to = LocationService.versions.get(3002);
+        visitService.createVisit(visit(3001, ivan, kiev, 100L, 4));
+        assertThat(UserService.versions.get(3001), is(greaterThan(user)));
+        assertThat(LocationService.versions.get(3001), is(greaterThan(from)));
+
+        user = UserService.versions.get(3001);
+        from = LocationService.versions.get(3001);
+        Visit patch = new Visit();
+        patch.setLocation(riga);
+        visitService.updateVisit(3001, patch);
+        assertThat(UserService.versions.get(3001), is(greaterThan(user)));
+        assertThat(LocationService.versions.get(3001), is(greaterThan(from)));
+        assertThat(LocationService.versions.get(3002), is(greaterThan(to)));
+
+        // ages and genders of the marks are in the averages of the user's locations
+        to = LocationService.versions.get(3002);
+        User userPatch = new User();
+        userPatch.setGender(Gender.FEMALE);
+        userService.updateUser(3001, userPatch);
+        assertThat(LocationService.versions.get(3002), is(greaterThan(to)));
+
+        // places and distances are in the visits of the location's users
+        user = UserService.versions.get(3001);
+        Location locationPatch = new Location();
+        locationPatch.setDistance(30);
+        locationService.updateLocation(3002, locationPatch);
+        assertThat(UserService.versions.get(3001), is(greaterThan(user)));
+    }
+
+    private static List<String> places(ShortVisits shortVisits) {
+        return shortVisits.getVisits().stream().map(ShortVisit::getPlace).collect(Collectors.toList());
+    }
+
+    private static Location storedLocation(Integer id, String place, String country, int distance) {
+        Location l = location(id, place, country);
+        l.setDistance(distance);
+        l.setCountryCode(LocationService.strings.encode(country));
+        LocationService.locations.put(id, l);
+        return l;
+    }
+
     private static User user(Integer id, String name, String gender, Integer age) {
         User u = new User();
         u.setId(id);
         u.setFirstName(name);
-        u.setGender(gender);
-        u.setAge(age);
+        u.setGender(Gender.fromString(gender));
+        // half a year past the birthday
+        u.setBirthDate(DataLoader.NOW_TS.toLocalDate().minusYears(age).minusDays(180).atStartOfDay().toEpochSecond(ZoneOffset.UTC));
         return u;
     }
 
@@ -63,11 +223,11 @@ public class VisitServiceTest {
         return l;
     }
 
-    private static Visit visit(Integer id, Integer userId, Integer locId, Long visitedAt, Integer mark) {
+    private static Visit visit(Integer id, User user, Location location, Long visitedAt, Integer mark) {
         Visit v = new Visit();
         v.setId(id);
-        v.setUserId(userId);
-        v.setLocationId(locId);
+        v.setUser(user);
+        v.setLocation(location);
         v.setVisitedAt(visitedAt);
         v.setMark(mark);
         return v;
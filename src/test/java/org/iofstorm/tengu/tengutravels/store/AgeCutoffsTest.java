@@ -0,0 +1,48 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class AgeCutoffsTest {
+
+    @Test(dataProvider = "referenceTimesDataProvider")
+    public void testCutoffsMatchCalculatedAges(LocalDateTime referenceTime) throws Exception {
+        AgeCutoffs cutoffs = AgeCutoffs.at(referenceTime);
+        Random random = new Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            // -1950 .. 2015, every fourth birth date falls on the 28th of February - 1st of March
+            long birthDate = -631152000L + (long) (random.nextDouble() * 2_050_000_000L);
+            if (i % 4 == 0) {
+                LocalDate d = LocalDate.of(1952 + 4 * random.nextInt(15) + random.nextInt(2), 2, 28).plusDays(random.nextInt(3));
+                birthDate = d.atStartOfDay().toEpochSecond(ZoneOffset.UTC) + random.nextInt(86400);
+            }
+            LocalDate bd = LocalDateTime.ofEpochSecond(birthDate, 0, ZoneOffset.UTC).toLocalDate();
+            int age = (int) ChronoUnit.YEARS.between(bd, referenceTime);
+            int filterAge = age - 1 + random.nextInt(3);
+
+            assertThat(birthDate < cutoffs.bornBefore(filterAge), is(equalTo(age >= filterAge)));
+        }
+        assertThat(cutoffs.bornBefore(Integer.MAX_VALUE) < -631152000L, is(true));
+        assertThat(cutoffs.bornBefore(Integer.MIN_VALUE) > 2_000_000_000L, is(true));
+    }
+
+    @DataProvider(name = "referenceTimesDataProvider")
+    public static Object[][] referenceTimesDataProvider() {
+        return new Object[][]{
+                {LocalDateTime.ofEpochSecond(1503695452L, 0, ZoneOffset.UTC)},
+                {LocalDateTime.of(2016, 2, 29, 12, 0)},
+                {LocalDateTime.of(2017, 2, 28, 23, 59)},
+                {LocalDateTime.of(2017, 3, 1, 0, 0)}
+        };
+    }
+}
@@ -0,0 +1,85 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class IdStoreTest {
+
+    @Test(dataProvider = "idsDataProvider")
+    public void testPutAndGet(int id) throws Exception {
+        IdStore<String> store = new IdStore<>(16);
+
+        assertNull(store.get(id));
+        assertFalse(store.contains(id));
+
+        assertNull(store.put(id, "first"));
+        assertThat(store.put(id, "second"), is(equalTo("first")));
+
+        assertThat(store.get(id), is(equalTo("second")));
+        assertTrue(store.contains(id));
+        assertThat(store.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void testSparseMapGrowth() throws Exception {
+        IntObjectMap<Integer> map = new IntObjectMap<>(4);
+        for (int i = -50_000; i < 50_000; i++) map.put(i * 31, i);
+
+        assertThat(map.size(), is(equalTo(100_000)));
+        for (int i = -50_000; i < 50_000; i++) assertThat(map.get(i * 31), is(equalTo(i)));
+        assertNull(map.get(1));
+    }
+
+    @Test
+    public void testReadersNeverSeeAKeyWithoutItsValue() throws Exception {
+        IntObjectMap<Integer> map = new IntObjectMap<>(4);
+        int n = 200_000;
+        AtomicReference<String> failure = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            Random random = new Random(5);
+            while (!done.get()) {
+                int i = random.nextInt(n);
+                Integer value = map.get(-i - 1);
+                if (value != null && value != i) failure.compareAndSet(null, "key " + (-i - 1) + " maps to " + value);
+            }
+        });
+        reader.start();
+        for (int i = 0; i < n; i++) map.put(-i - 1, i);
+        done.set(true);
+        reader.join();
+
+        assertNull(failure.get());
+        int[] seen = new int[1];
+        map.forEach((key, value) -> {
+            assertThat(value, is(equalTo(-key - 1)));
+            seen[0]++;
+        });
+        assertThat(seen[0], is(equalTo(n)));
+    }
+
+    @DataProvider(name = "idsDataProvider")
+    public static Object[][] idsDataProvider() {
+        return new Object[][]{
+                {0},
+                {1},
+                {17},       // beyond initial dense capacity
+                {100_000},
+                {IdStore.MAX_DENSE_ID},
+                {Integer.MAX_VALUE},
+                {-1},
+                {Integer.MIN_VALUE}
+        };
+    }
+}
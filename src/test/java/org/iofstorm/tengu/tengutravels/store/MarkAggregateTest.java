@@ -0,0 +1,81 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class MarkAggregateTest {
+
+    @Test
+    public void testIncrementalUpdatesMatchScan() throws Exception {
+        Random random = new Random(42);
+        MarkAggregate aggregate = new MarkAggregate();
+        List<long[]> marks = new ArrayList<>(); // {visitedAt, mark, gender ordinal}
+
+        for (int step = 0; step < 2_000; step++) {
+            if (marks.isEmpty() || random.nextInt(3) > 0) {
+                long[] m = {random.nextInt(100), random.nextInt(6), random.nextInt(2)};
+                marks.add(m);
+                aggregate.add(m[0], (int) m[1], Gender.values()[(int) m[2]]);
+            } else {
+                long[] m = marks.remove(random.nextInt(marks.size()));
+                aggregate.remove(m[0], (int) m[1], Gender.values()[(int) m[2]]);
+            }
+
+            long from = random.nextBoolean() ? Long.MIN_VALUE : random.nextInt(100);
+            long to = random.nextBoolean() ? Long.MAX_VALUE : random.nextInt(100);
+            Gender gender = Gender.values()[random.nextInt(3)];
+            assertThat(aggregate.sumAndCount(from, to, gender), is(equalTo(scan(marks, from, to, gender))));
+        }
+    }
+
+    @Test
+    public void testUpdatesMixedWithRangeQueriesOverManyBlocks() throws Exception {
+        Random random = new Random(7);
+        MarkAggregate aggregate = new MarkAggregate();
+        List<long[]> marks = new ArrayList<>(); // {visitedAt, mark, gender ordinal}
+        for (int i = 0; i < 5_000; i++) {
+            long[] m = {random.nextInt(2_000), random.nextInt(6), random.nextInt(2)};
+            marks.add(m);
+            aggregate.add(m[0], (int) m[1], Gender.values()[(int) m[2]]);
+        }
+
+        // removals first thin the blocks out until they are laid out again, then updates refill them
+        for (int step = 0; step < 6_000; step++) {
+            int removals = step < 3_000 ? 2 : 1;
+            for (int r = 0; r < removals && !marks.isEmpty(); r++) {
+                long[] m = marks.remove(random.nextInt(marks.size()));
+                aggregate.remove(m[0], (int) m[1], Gender.values()[(int) m[2]]);
+            }
+            if (step >= 3_000 || random.nextBoolean()) {
+                long[] m = {random.nextInt(2_000), random.nextInt(6), random.nextInt(2)};
+                marks.add(m);
+                aggregate.add(m[0], (int) m[1], Gender.values()[(int) m[2]]);
+            }
+
+            long from = random.nextInt(10) == 0 ? Long.MIN_VALUE : random.nextInt(2_000);
+            long to = random.nextInt(10) == 0 ? Long.MAX_VALUE : from + random.nextInt(500);
+            Gender gender = Gender.values()[random.nextInt(3)];
+            assertThat(aggregate.sumAndCount(from, to, gender), is(equalTo(scan(marks, from, to, gender))));
+        }
+    }
+
+    private static long scan(List<long[]> marks, long from, long to, Gender gender) {
+        int sum = 0;
+        int count = 0;
+        for (long[] m : marks) {
+            if (m[0] <= from || m[0] >= to) continue;
+            if (gender != Gender.UNKNOWN && gender.ordinal() != m[2]) continue;
+            sum += m[1];
+            count++;
+        }
+        return ((long) sum << 32) | count;
+    }
+}
@@ -0,0 +1,69 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void testBodiesAreServedForTheirKeyAndVersion() {
+        ResponseCache cache = new ResponseCache(1024, 1 << 20, 1024);
+        byte[] body = {1, 2, 3};
+        cache.put(7, 3, 100L, 200L, 0L, 0L, 5L, body);
+
+        assertThat(cache.get(7, 3, 100L, 200L, 0L, 0L, 5L), is(sameInstance(body)));
+        assertThat(cache.get(7, 3, 100L, 200L, 0L, 0L, 6L), is(nullValue())); // changed since
+        assertThat(cache.get(7, 1, 100L, 200L, 0L, 0L, 5L), is(nullValue())); // toDate 200 absent is another request
+        assertThat(cache.get(8, 3, 100L, 200L, 0L, 0L, 5L), is(nullValue()));
+        assertThat(cache.get(7, 3, 100L, 200L, 1L, 0L, 5L), is(nullValue()));
+        assertThat(cache.getHits(), is(equalTo(1L)));
+        assertThat(cache.getMisses(), is(equalTo(4L)));
+
+        // a body of the new version replaces the stale one
+        byte[] newer = {4};
+        cache.put(7, 3, 100L, 200L, 0L, 0L, 6L, newer);
+        assertThat(cache.get(7, 3, 100L, 200L, 0L, 0L, 6L), is(sameInstance(newer)));
+        assertThat(cache.getEvictions(), is(equalTo(0L)));
+
+        cache.resetStats();
+        assertThat(cache.getHits(), is(equalTo(0L)));
+        assertThat(cache.getMisses(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void testBytesStayWithinTheBudget() {
+        long maxBytes = 64 * 1024;
+        ResponseCache cache = new ResponseCache(4096, maxBytes, 2048);
+        for (int id = 0; id < 10_000; id++) {
+            cache.put(id, 0, 0L, 0L, 0L, 0L, 0L, new byte[1 + id % 1000]);
+            assertThat(cache.getBytes(), is(lessThanOrEqualTo(maxBytes)));
+        }
+        int cached = 0;
+        for (int id = 0; id < 10_000; id++) {
+            byte[] body = cache.get(id, 0, 0L, 0L, 0L, 0L, 0L);
+            if (body != null) {
+                assertThat(body.length, is(equalTo(1 + id % 1000)));
+                cached++;
+            }
+        }
+        assertThat(cache.getEvictions(), is(equalTo(10_000L - cached)));
+
+        // bodies over the entry limit are not cached
+        cache.put(1, 1, 0L, 0L, 0L, 0L, 0L, new byte[4096]);
+        assertThat(cache.get(1, 1, 0L, 0L, 0L, 0L, 0L), is(nullValue()));
+    }
+
+    @Test
+    public void testDisabledCacheKeepsNothing() {
+        ResponseCache cache = new ResponseCache(16, 0, 1024);
+        cache.put(1, 0, 0L, 0L, 0L, 0L, 0L, new byte[1]);
+        assertThat(cache.get(1, 0, 0L, 0L, 0L, 0L, 0L), is(nullValue()));
+        assertThat(cache.getBytes(), is(equalTo(0L)));
+    }
+}
@@ -0,0 +1,138 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.iofstorm.tengu.tengutravels.model.Gender;
+import org.iofstorm.tengu.tengutravels.model.Location;
+import org.iofstorm.tengu.tengutravels.model.User;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class RowListTest {
+
+    @Test
+    public void testReadersSeeOnlyWholeLists() throws Exception {
+        User user = new User();
+        user.setId(1);
+        user.setGender(Gender.FEMALE);
+        user.setBirthDate(0L);
+        Location location = new Location(1, "park", "ru", "spb", 10);
+        VisitTable table = new VisitTable(16);
+        Random random = new Random(3);
+        for (int i = 0; i < 10_000; i++) table.append(i, random.nextInt(1000), 5, user, location);
+
+        RowList list = new RowList();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get() && failure.get() == null) {
+                int[] rows = list.rows();
+                Set<Integer> seen = new HashSet<>();
+                for (int i = 0; i < rows.length; i++) {
+                    if (!seen.add(rows[i])) failure.set("row " + rows[i] + " is listed twice");
+                    if (i > 0 && table.getVisitedAt(rows[i - 1]) > table.getVisitedAt(rows[i])) failure.set("rows are out of order at " + i);
+                }
+                int lo = RowList.firstAfter(rows, 500, table);
+                if (lo < rows.length && table.getVisitedAt(rows[lo]) <= 500) failure.set("firstAfter missed at " + lo);
+            }
+        });
+        reader.start();
+
+        List<Integer> listed = new ArrayList<>();
+        for (int row = 0; row < table.size(); row++) {
+            list.insertByVisitedAt(row, table);
+            listed.add(row);
+            if (random.nextInt(3) == 0) assertThat(list.removeByVisitedAt(listed.remove(random.nextInt(listed.size())), table), is(true));
+        }
+        done.set(true);
+        reader.join();
+
+        assertThat(failure.get(), is(nullValue()));
+        assertThat(list.size(), is(equalTo(listed.size())));
+        assertThat(list.removeByVisitedAt(listed.get(0), table), is(true));
+        assertThat(list.removeByVisitedAt(listed.get(0), table), is(false));
+        assertThat(RowList.EMPTY.rows().length, is(equalTo(0)));
+    }
+
+    @Test
+    public void testSortByVisitedAtBreaksTiesById() throws Exception {
+        User user = new User();
+        user.setId(1);
+        user.setGender(Gender.MALE);
+        Location location = new Location(1, "park", "ru", "spb", 10);
+        VisitTable table = new VisitTable(16);
+        Random random = new Random(4);
+        int[] rows = new int[5000];
+        // ids don't follow rows, as rows follow the timing of the parallel loaders
+        for (int i = 0; i < rows.length; i++) rows[i] = table.append(i * 7919 % rows.length, random.nextInt(100), 1, user, location);
+
+        RowList.sortByVisitedAt(rows, table);
+
+        RowList list = new RowList();
+        for (int row = table.size() - 1; row >= 0; row--) list.insertByVisitedAt(row, table);
+        assertThat(list.rows(), is(equalTo(rows)));
+        for (int i = 1; i < rows.length; i++) {
+            long prev = table.getVisitedAt(rows[i - 1]);
+            long cur = table.getVisitedAt(rows[i]);
+            assertThat(prev < cur || (prev == cur && table.getVisitId(rows[i - 1]) < table.getVisitId(rows[i])), is(true));
+        }
+    }
+
+    @Test
+    public void testCountryOrderMatchesSortedRows() throws Exception {
+        User user = new User();
+        user.setId(1);
+        user.setGender(Gender.FEMALE);
+        user.setBirthDate(0L);
+        Location[] locations = new Location[5];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = new Location(i + 1, "park", "country" + i, "city", 10);
+            locations[i].setCountryCode(locations.length - i); // codes don't follow ids
+        }
+        VisitTable table = new VisitTable(16);
+        Random random = new Random(6);
+        for (int i = 0; i < 3000; i++) table.append(3000 - i, random.nextInt(200), 5, user, locations[random.nextInt(locations.length)]);
+
+        RowList list = new RowList();
+        List<Integer> listed = new ArrayList<>();
+        for (int row = 0; row < table.size(); row++) {
+            list.insertByCountry(row, table);
+            listed.add(row);
+            if (random.nextInt(3) == 0) assertThat(list.removeByCountry(listed.remove(random.nextInt(listed.size())), table), is(true));
+        }
+
+        int[] byVisitedAt = listed.stream().mapToInt(Integer::intValue).toArray();
+        RowList.sortByVisitedAt(byVisitedAt, table);
+        int[] rows = list.rows();
+        int[] sorted = RowList.sortByCountry(byVisitedAt, table);
+        assertThat(rows, is(equalTo(sorted)));
+
+        // a country and date range is exactly the rows a scan finds
+        for (int code = 0; code <= locations.length + 1; code++) {
+            long from = random.nextInt(200);
+            long to = from + random.nextInt(100);
+            int lo = RowList.firstOfCountry(rows, code, table);
+            int hi = RowList.firstAfterCountry(rows, code, table);
+            lo = RowList.firstAfter(rows, lo, hi, from, table);
+            hi = RowList.firstNotBefore(rows, lo, hi, to, table);
+            int expected = 0;
+            for (int row : rows) {
+                if (table.getLocationCountry(row) == code && table.getVisitedAt(row) > from && table.getVisitedAt(row) < to) expected++;
+            }
+            assertThat(Math.max(0, hi - lo), is(equalTo(expected)));
+            for (int i = lo; i < hi; i++) assertThat(table.getLocationCountry(rows[i]), is(equalTo(code)));
+        }
+        assertThat(list.removeByCountry(rows[0], table), is(true));
+        assertThat(list.removeByCountry(rows[0], table), is(false));
+    }
+}
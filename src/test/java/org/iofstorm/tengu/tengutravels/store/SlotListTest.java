@@ -0,0 +1,87 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class SlotListTest {
+
+    @Test
+    public void testRemoveAtKeepsSlotsOfTheRest() throws Exception {
+        SlotList list = new SlotList();
+        int[] slots = new int[1000];
+        for (int row = 0; row < slots.length; row++) slots[row] = list.append(row);
+
+        Random random = new Random(9);
+        Set<Integer> listed = new HashSet<>();
+        for (int row = 0; row < slots.length; row++) listed.add(row);
+        for (int i = 0; i < 900; i++) {
+            int row = new ArrayList<>(listed).get(random.nextInt(listed.size()));
+            int moved = list.removeAt(slots[row]);
+            if (moved >= 0) slots[moved] = slots[row];
+            listed.remove(row);
+        }
+
+        assertThat(list.size(), is(equalTo(listed.size())));
+        for (int row : listed) assertThat(list.get(slots[row]), is(equalTo(row)));
+        assertThat(SlotList.EMPTY.size(), is(equalTo(0)));
+    }
+
+    @Test
+    public void testValidatedScansSeeEveryRowOnce() throws Exception {
+        // rows 0..99 stay listed, the rest come and go, so a validated scan always sees all of 0..99 exactly once
+        SlotList list = new SlotList(new int[0]);
+        int[] slots = new int[100_000];
+        for (int row = 0; row < 100; row++) slots[row] = list.append(row);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get() && failure.get() == null) {
+                int fixed;
+                Set<Integer> seen = new HashSet<>();
+                int version;
+                do {
+                    version = list.beginRead();
+                    fixed = 0;
+                    seen.clear();
+                    for (int slot = 0, size = list.size(); slot < size; slot++) {
+                        int row = list.get(slot);
+                        if (!seen.add(row)) fixed = -1_000_000;
+                        if (row < 100) fixed++;
+                    }
+                } while (!list.validate(version));
+                if (fixed != 100) failure.set("a scan counted " + fixed + " of the 100 fixed rows");
+            }
+        });
+        reader.start();
+
+        Random random = new Random(5);
+        List<Integer> listed = new ArrayList<>();
+        for (int row = 100; row < slots.length; row++) {
+            slots[row] = list.append(row);
+            listed.add(row);
+            if (random.nextInt(3) != 0) {
+                int removed = listed.remove(random.nextInt(listed.size()));
+                int moved = list.removeAt(slots[removed]);
+                if (moved >= 0) slots[moved] = slots[removed];
+            }
+        }
+        done.set(true);
+        reader.join();
+
+        assertThat(failure.get(), is(nullValue()));
+        assertThat(list.size(), is(equalTo(100 + listed.size())));
+    }
+}
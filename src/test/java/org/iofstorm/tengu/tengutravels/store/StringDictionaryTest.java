@@ -0,0 +1,58 @@
+package org.iofstorm.tengu.tengutravels.store;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class StringDictionaryTest {
+
+    @Test
+    public void testValuesAreInternedWithTheirJson() {
+        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+        StringDictionary dictionary = new StringDictionary();
+        String[] values = {"Россия", "quote \" and \\ slash", "tab\tnew\nline", "<b>&amp;</b>", ""};
+        for (int i = 0; i < values.length; i++) {
+            assertThat(dictionary.encode(values[i]), is(equalTo(i)));
+        }
+        for (int i = 0; i < values.length; i++) {
+            String copy = new String(values[i].toCharArray());
+            assertThat(dictionary.encode(copy), is(equalTo(i)));
+            assertThat(dictionary.find(copy), is(equalTo(i)));
+            assertThat(dictionary.decode(i), is(sameInstance(values[i])));
+            assertThat(new String(dictionary.json(i), StandardCharsets.UTF_8), is(equalTo(gson.toJson(values[i]))));
+        }
+        assertThat(dictionary.find("Франция"), is(equalTo(StringDictionary.NOT_FOUND)));
+        assertThat(dictionary.size(), is(equalTo(values.length)));
+    }
+
+    @Test
+    public void testCodesDecodeWhileTheDictionaryGrows() throws Exception {
+        StringDictionary dictionary = new StringDictionary();
+        int n = 50_000;
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < n && failure.get() == null; i++) {
+                    String value = "city" + i;
+                    int code = dictionary.encode(value);
+                    if (!value.equals(dictionary.decode(code)) || dictionary.json(code) == null) failure.set(value + " -> " + code);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) writer.join();
+
+        assertThat(failure.get(), is(nullValue()));
+        assertThat(dictionary.size(), is(equalTo(n)));
+    }
+}
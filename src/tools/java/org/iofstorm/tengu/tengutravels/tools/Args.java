@@ -0,0 +1,38 @@
+package org.iofstorm.tengu.tengutravels.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * --name=value command line arguments of the tools.
+ */
+class Args {
+    private final Map<String, String> values = new HashMap<>();
+
+    Args(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) throw new IllegalArgumentException("expected --name=value, got " + arg);
+            values.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+    }
+
+    String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    long getLong(String name, long defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    double getDouble(String name, double defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
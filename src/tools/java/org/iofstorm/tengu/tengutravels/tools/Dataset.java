@@ -0,0 +1,170 @@
+package org.iofstorm.tengu.tengutravels.tools;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic data in the format of the contest: users, locations and visits files of up to 10k entities each
+ * and options.txt, either as a zip or as files of a directory. Proportions follow the rating data, 0.8 locations
+ * and 10 visits per user. With a skew above 0 users and locations of visits are Zipf distributed, low ids being
+ * the most visited. The data only depends on the parameters, so every run against one size gets the same data.
+ */
+public class Dataset {
+    public static final long TIMESTAMP = 1503695452L;
+    public static final long VISITED_AT_FROM = 946684800L; // 2000-01-01
+    public static final long VISITED_AT_TO = 1420070400L; // 2015-01-01
+    public static final String[] COUNTRIES = {"Россия", "Франция", "Германия", "Италия", "Испания", "Австрия", "Польша",
+            "Чехия", "Финляндия", "Швеция", "Норвегия", "Египет", "Турция", "Таиланд", "Китай", "Япония"};
+    private static final int ENTITIES_PER_FILE = 10_000;
+    private static final long BIRTH_DATE_FROM = -1262304000L; // 1930-01-01
+    private static final long BIRTH_DATE_TO = 946684800L; // 2000-01-01
+
+    private final int users;
+    private final int locations;
+    private final int visits;
+    private final double skew;
+    private final long timestamp;
+    private final boolean rating;
+
+    public Dataset(int users) {
+        this(users, 0, TIMESTAMP, users >= 100_000);
+    }
+
+    public Dataset(int users, double skew, long timestamp, boolean rating) {
+        this.users = users;
+        this.locations = Math.max(1, users * 4 / 5);
+        this.visits = users * 10;
+        this.skew = skew;
+        this.timestamp = timestamp;
+        this.rating = rating;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public int getLocations() {
+        return locations;
+    }
+
+    public int getVisits() {
+        return visits;
+    }
+
+    // zip of these parameters in the temp dir, written on the first call
+    public File zip() throws IOException {
+        String name = "tengu-data-" + users + (skew > 0 ? "-" + skew : "") + "-" + timestamp + (rating ? "-rating" : "") + ".zip";
+        File zip = new File(System.getProperty("java.io.tmpdir"), name);
+        if (!zip.exists()) {
+            File tmp = new File(zip.getPath() + ".tmp");
+            writeZip(tmp);
+            if (!tmp.renameTo(zip)) throw new IOException("failed to rename " + tmp + " to " + zip);
+        }
+        return zip;
+    }
+
+    public void writeZip(File zip) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            write(name -> {
+                out.putNextEntry(new ZipEntry(name));
+                return out;
+            });
+        }
+    }
+
+    public void writeDirectory(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("failed to create " + dir);
+        OutputStream[] current = new OutputStream[1];
+        try {
+            write(name -> {
+                if (current[0] != null) current[0].close();
+                current[0] = new FileOutputStream(new File(dir, name));
+                return current[0];
+            });
+        } finally {
+            if (current[0] != null) current[0].close();
+        }
+    }
+
+    // every file is written to the stream the sink gives for its name
+    private void write(FileSink sink) throws IOException {
+        Random random = new Random(users);
+        Zipf visitedUsers = new Zipf(users, skew);
+        Zipf visitedLocations = new Zipf(locations, skew);
+
+        Writer writer = new OutputStreamWriter(sink.open("options.txt"), StandardCharsets.UTF_8);
+        writer.write(timestamp + "\n" + (rating ? 1 : 0) + "\n");
+        writer.flush();
+
+        for (int first = 1, file = 1; first <= users; first += ENTITIES_PER_FILE, file++) {
+            JsonWriter json = begin(sink, "users", file);
+            for (int id = first; id < first + ENTITIES_PER_FILE && id <= users; id++) {
+                json.beginObject()
+                        .name("id").value(id)
+                        .name("email").value("user" + id + "@mail.ru")
+                        .name("first_name").value("Имя" + random.nextInt(100))
+                        .name("last_name").value("Фамилия" + random.nextInt(1000))
+                        .name("gender").value(random.nextBoolean() ? "m" : "f")
+                        .name("birth_date").value(between(random, BIRTH_DATE_FROM, BIRTH_DATE_TO))
+                        .endObject();
+            }
+            end(json);
+        }
+        for (int first = 1, file = 1; first <= locations; first += ENTITIES_PER_FILE, file++) {
+            JsonWriter json = begin(sink, "locations", file);
+            for (int id = first; id < first + ENTITIES_PER_FILE && id <= locations; id++) {
+                json.beginObject()
+                        .name("id").value(id)
+                        .name("place").value("Место" + random.nextInt(200))
+                        .name("country").value(COUNTRIES[random.nextInt(COUNTRIES.length)])
+                        .name("city").value("Город" + random.nextInt(500))
+                        .name("distance").value(1 + random.nextInt(100))
+                        .endObject();
+            }
+            end(json);
+        }
+        for (int first = 1, file = 1; first <= visits; first += ENTITIES_PER_FILE, file++) {
+            JsonWriter json = begin(sink, "visits", file);
+            for (int id = first; id < first + ENTITIES_PER_FILE && id <= visits; id++) {
+                json.beginObject()
+                        .name("id").value(id)
+                        .name("location").value(visitedLocations.next(random))
+                        .name("user").value(visitedUsers.next(random))
+                        .name("visited_at").value(between(random, VISITED_AT_FROM, VISITED_AT_TO))
+                        .name("mark").value(random.nextInt(6))
+                        .endObject();
+            }
+            end(json);
+        }
+    }
+
+    private static JsonWriter begin(FileSink sink, String entity, int file) throws IOException {
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(sink.open(entity + "_" + file + ".json"), StandardCharsets.UTF_8));
+        json.beginObject().name(entity).beginArray();
+        return json;
+    }
+
+    // the stream may be shared by the files, so it is only flushed here
+    private static void end(JsonWriter json) throws IOException {
+        json.endArray().endObject();
+        json.flush();
+    }
+
+    public static long between(Random random, long from, long to) {
+        return from + (long) (random.nextDouble() * (to - from));
+    }
+
+    private interface FileSink {
+        OutputStream open(String name) throws IOException;
+    }
+}
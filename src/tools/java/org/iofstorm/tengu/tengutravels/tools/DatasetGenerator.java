@@ -0,0 +1,24 @@
+package org.iofstorm.tengu.tengutravels.tools;
+
+import java.io.File;
+
+/**
+ * Writes a {@link Dataset}: --out=<dir or .zip> [--users=10000] [--skew=0] [--timestamp=1503695452] [--mode=test|rating]
+ */
+public class DatasetGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Args a = new Args(args);
+        int users = a.getInt("users", 10_000);
+        Dataset dataset = new Dataset(users, a.getDouble("skew", 0), a.getLong("timestamp", Dataset.TIMESTAMP),
+                "rating".equals(a.get("mode", users >= 100_000 ? "rating" : "test")));
+        File out = new File(a.get("out", "data.zip"));
+
+        long startTs = System.currentTimeMillis();
+        if (out.getName().endsWith(".zip")) dataset.writeZip(out);
+        else dataset.writeDirectory(out);
+
+        System.out.printf("%d users, %d locations and %d visits were written to %s in %.3f sec%n",
+                dataset.getUsers(), dataset.getLocations(), dataset.getVisits(), out, (System.currentTimeMillis() - startTs) / 1000f);
+    }
+}
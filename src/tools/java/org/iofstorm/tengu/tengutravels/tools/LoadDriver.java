@@ -0,0 +1,310 @@
+package org.iofstorm.tengu.tengutravels.tools;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Load driver for a running server: --data=<zip the server loaded> [--url=http://127.0.0.1:80] [--duration=30]
+ * [--warmup=5] [--connections=16] [--rate=0] [--post-share=0.05] [--skew=0] [--first-new-id=<max visit id + 1>]
+ * With rate 0 every connection sends the next request once the previous one is answered (closed loop). Otherwise
+ * requests are scheduled at the rate per second whatever the answers (open loop) and latency counts from the
+ * scheduled time, so a stalled server shows up in the latency instead of being hidden by fewer requests.
+ * Requests of the first warmup seconds are not counted. Throughput and p50/p99/p99.9 latency are reported
+ * per kind of request. New visits of a run against a server which already took some must start after their ids.
+ */
+public class LoadDriver {
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+
+    enum Kind {
+        ENTITY, USER_VISITS, AVERAGE, POST
+    }
+
+    private final String url;
+    private final int connections;
+    private final int rate;
+    private final double postShare;
+    private final Zipf users;
+    private final Zipf locations;
+    private final Zipf visits;
+    private final String[] countries;
+    private final int firstNewVisitId;
+    private final AtomicInteger nextVisitId;
+
+    private LoadDriver(Args args, Data data) {
+        url = args.get("url", "http://127.0.0.1:80");
+        connections = args.getInt("connections", 16);
+        rate = args.getInt("rate", 0);
+        postShare = args.getDouble("post-share", 0.05);
+        double skew = args.getDouble("skew", 0);
+        users = new Zipf(data.maxUserId, skew);
+        locations = new Zipf(data.maxLocationId, skew);
+        visits = new Zipf(data.maxVisitId, skew);
+        countries = data.countries.toArray(new String[0]);
+        firstNewVisitId = args.getInt("first-new-id", data.maxVisitId + 1);
+        nextVisitId = new AtomicInteger(firstNewVisitId);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Args a = new Args(args);
+        Data data = Data.scan(new File(a.get("data", "/tmp/data/data.zip")));
+        System.out.printf("%d users, %d locations and %d visits in the data%n", data.maxUserId, data.maxLocationId, data.maxVisitId);
+
+        LoadDriver driver = new LoadDriver(a, data);
+        driver.run(a.getInt("duration", 30), a.getInt("warmup", 5));
+    }
+
+    private void run(int durationSeconds, int warmupSeconds) throws InterruptedException {
+        long startTs = System.nanoTime();
+        long measureFromTs = startTs + warmupSeconds * 1_000_000_000L;
+        long endTs = measureFromTs + durationSeconds * 1_000_000_000L;
+        long intervalNanos = rate > 0 ? 1_000_000_000L / rate : 0;
+        AtomicLong scheduled = new AtomicLong();
+
+        System.out.printf("%s loop, %d connections%s, %d sec after %d sec of warm-up...%n", rate > 0 ? "open" : "closed",
+                connections, rate > 0 ? ", " + rate + " requests per sec" : "", durationSeconds, warmupSeconds);
+
+        List<Recorder> recorders = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            Thread thread = new Thread(() -> {
+                Random random = ThreadLocalRandom.current();
+                byte[] buf = new byte[8192];
+                while (true) {
+                    long intendedTs;
+                    if (rate > 0) {
+                        intendedTs = startTs + scheduled.getAndIncrement() * intervalNanos;
+                        if (intendedTs >= endTs) break;
+                        long wait = intendedTs - System.nanoTime();
+                        if (wait > 0) LockSupport.parkNanos(wait);
+                    } else {
+                        intendedTs = System.nanoTime();
+                        if (intendedTs >= endTs) break;
+                    }
+                    Kind kind = nextKind(random);
+                    int status = send(kind, random, buf);
+                    if (intendedTs >= measureFromTs) recorder.record(kind, System.nanoTime() - intendedTs, status);
+                }
+            }, "load-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+
+        report(recorders, durationSeconds);
+        if (nextVisitId.get() > firstNewVisitId) System.out.printf("new visits took ids %d - %d%n", firstNewVisitId, nextVisitId.get() - 1);
+    }
+
+    private Kind nextKind(Random random) {
+        if (random.nextDouble() < postShare) return Kind.POST;
+        int k = random.nextInt(10);
+        return k < 4 ? Kind.ENTITY : k < 7 ? Kind.USER_VISITS : Kind.AVERAGE;
+    }
+
+    // status of the answer, 0 if the request failed
+    private int send(Kind kind, Random random, byte[] buf) {
+        try {
+            switch (kind) {
+                case ENTITY:
+                    int entity = random.nextInt(3);
+                    if (entity == 0) return request("/users/" + users.next(random), null, buf);
+                    if (entity == 1) return request("/locations/" + locations.next(random), null, buf);
+                    return request("/visits/" + visits.next(random), null, buf);
+                case USER_VISITS:
+                    return request("/users/" + users.next(random) + "/visits" + userVisitsQuery(random), null, buf);
+                case AVERAGE:
+                    return request("/locations/" + locations.next(random) + "/avg" + averageQuery(random), null, buf);
+                default:
+                    return post(random, buf);
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // updates of every entity and new visits, all of them valid
+    private int post(Random random, byte[] buf) throws IOException {
+        switch (random.nextInt(4)) {
+            case 0:
+                return request("/users/" + users.next(random), "{\"first_name\":\"Имя" + random.nextInt(100) + "\"}", buf);
+            case 1:
+                return request("/locations/" + locations.next(random), "{\"distance\":" + (1 + random.nextInt(100)) + "}", buf);
+            case 2:
+                return request("/visits/" + visits.next(random), "{\"mark\":" + random.nextInt(6) + "}", buf);
+            default:
+                return request("/visits/new", "{\"id\":" + nextVisitId.getAndIncrement()
+                        + ",\"user\":" + users.next(random)
+                        + ",\"location\":" + locations.next(random)
+                        + ",\"visited_at\":" + Dataset.between(random, Dataset.VISITED_AT_FROM, Dataset.VISITED_AT_TO)
+                        + ",\"mark\":" + random.nextInt(6) + "}", buf);
+        }
+    }
+
+    private String userVisitsQuery(Random random) throws UnsupportedEncodingException {
+        StringBuilder query = new StringBuilder();
+        long fromDate = Dataset.between(random, Dataset.VISITED_AT_FROM, Dataset.VISITED_AT_TO);
+        if (random.nextBoolean()) param(query, "fromDate", String.valueOf(fromDate));
+        if (random.nextBoolean()) param(query, "toDate", String.valueOf(fromDate + random.nextInt(5 * 365 * 86400)));
+        if (random.nextInt(3) == 0 && countries.length > 0) param(query, "country", URLEncoder.encode(countries[random.nextInt(countries.length)], "UTF-8"));
+        if (random.nextInt(3) == 0) param(query, "toDistance", String.valueOf(1 + random.nextInt(100)));
+        return query.toString();
+    }
+
+    private String averageQuery(Random random) {
+        StringBuilder query = new StringBuilder();
+        long fromDate = Dataset.between(random, Dataset.VISITED_AT_FROM, Dataset.VISITED_AT_TO);
+        int fromAge = random.nextInt(70);
+        if (random.nextBoolean()) param(query, "fromDate", String.valueOf(fromDate));
+        if (random.nextBoolean()) param(query, "toDate", String.valueOf(fromDate + random.nextInt(5 * 365 * 86400)));
+        if (random.nextInt(3) == 0) param(query, "fromAge", String.valueOf(fromAge));
+        if (random.nextInt(3) == 0) param(query, "toAge", String.valueOf(fromAge + random.nextInt(40)));
+        if (random.nextInt(3) == 0) param(query, "gender", random.nextBoolean() ? "m" : "f");
+        return query.toString();
+    }
+
+    private static void param(StringBuilder query, String name, String value) {
+        query.append(query.length() == 0 ? '?' : '&').append(name).append('=').append(value);
+    }
+
+    // the answer is read to the end, so the connection goes back to the keep-alive cache
+    private int request(String path, String body, byte[] buf) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        if (body != null) {
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try (InputStream answer = in) {
+                while (answer.read(buf) >= 0) ;
+            }
+        }
+        return status;
+    }
+
+    private static void report(List<Recorder> recorders, int durationSeconds) {
+        long total = 0;
+        long[] statuses = new long[6];
+        System.out.printf("%-12s %10s %10s %10s %10s %10s %10s%n", "", "requests", "per sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Kind kind : Kind.values()) {
+            int n = 0;
+            for (Recorder r : recorders) n += r.counts[kind.ordinal()];
+            long[] latencies = new long[n];
+            int i = 0;
+            for (Recorder r : recorders) {
+                System.arraycopy(r.latencies[kind.ordinal()], 0, latencies, i, r.counts[kind.ordinal()]);
+                i += r.counts[kind.ordinal()];
+            }
+            Arrays.sort(latencies);
+            total += n;
+            StringBuilder line = new StringBuilder(String.format("%-12s %10d %10.1f", kind.name().toLowerCase(), n, n / (double) durationSeconds));
+            for (double p : PERCENTILES) line.append(String.format(" %10.3f", percentile(latencies, p) / 1e6));
+            line.append(String.format(" %10.3f", n == 0 ? 0 : latencies[n - 1] / 1e6));
+            System.out.println(line);
+        }
+        for (Recorder r : recorders) {
+            for (int s = 0; s < statuses.length; s++) statuses[s] += r.statuses[s];
+        }
+        System.out.printf("%-12s %10d %10.1f%n", "total", total, total / (double) durationSeconds);
+        System.out.printf("2xx %d, 4xx %d, 5xx %d, failed %d%n", statuses[2], statuses[4], statuses[5], statuses[0]);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    // latencies of one thread, merged once the run is over
+    private static final class Recorder {
+        final long[][] latencies = new long[Kind.values().length][1024];
+        final int[] counts = new int[Kind.values().length];
+        // by the first digit of the status, failed requests go to 0
+        final long[] statuses = new long[6];
+
+        void record(Kind kind, long latencyNanos, int status) {
+            int k = kind.ordinal();
+            if (counts[k] == latencies[k].length) latencies[k] = Arrays.copyOf(latencies[k], counts[k] * 2);
+            latencies[k][counts[k]++] = latencyNanos;
+            statuses[status / 100 < statuses.length ? status / 100 : 0]++;
+        }
+    }
+
+    // ids the requests go to, read from the zip the server loaded
+    private static final class Data {
+        int maxUserId;
+        int maxLocationId;
+        int maxVisitId;
+        final Set<String> countries = new LinkedHashSet<>();
+
+        static Data scan(File zip) throws IOException {
+            Data data = new Data();
+            try (ZipFile zipFile = new ZipFile(zip)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (!name.startsWith("users_") && !name.startsWith("locations_") && !name.startsWith("visits_")) continue;
+                    try (JsonReader reader = new JsonReader(new InputStreamReader(zipFile.getInputStream(entry), StandardCharsets.UTF_8))) {
+                        data.read(reader, name);
+                    }
+                }
+            }
+            return data;
+        }
+
+        private void read(JsonReader reader, String file) throws IOException {
+            reader.beginObject();
+            reader.nextName();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if ("id".equals(field)) {
+                        int id = reader.nextInt();
+                        if (file.startsWith("users_")) maxUserId = Math.max(maxUserId, id);
+                        else if (file.startsWith("locations_")) maxLocationId = Math.max(maxLocationId, id);
+                        else maxVisitId = Math.max(maxVisitId, id);
+                    } else if ("country".equals(field)) {
+                        countries.add(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+            reader.endObject();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.iofstorm.tengu.tengutravels.tools;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipf distributed ids in [1, n]: id k comes with probability proportional to 1 / k^skew,
+ * skew 0 gives uniform ids. Sampling is a binary search over the precomputed distribution.
+ */
+public class Zipf {
+    private final int n;
+    private final double[] cdf;
+
+    public Zipf(int n, double skew) {
+        this.n = n;
+        if (skew <= 0) {
+            cdf = null;
+            return;
+        }
+        cdf = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1 / Math.pow(k, skew);
+            cdf[k - 1] = sum;
+        }
+        for (int i = 0; i < n; i++) cdf[i] /= sum;
+    }
+
+    public int next(Random random) {
+        if (cdf == null) return 1 + random.nextInt(n);
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return 1 + (i >= 0 ? i : Math.min(-i - 1, n - 1));
+    }
+}